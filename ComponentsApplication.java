@@ -1,6 +1,7 @@
 package org.lightframe.components;
 
 import java.io.Serializable;
+import java.util.concurrent.Future;
 
 import com.vaadin.Application;
 import com.vaadin.ui.Button;
@@ -15,44 +16,40 @@ public class ComponentsApplication extends Application {
     private static final long serialVersionUID = -1134769947702907890L;
     private static final long SLEEP_TIME_IN_MILLIS = 500; // half a second
 
-    private class CounterThread extends Thread implements Serializable {
+    private class Counter implements Runnable, Serializable {
         private static final long serialVersionUID = 6969871601928939400L;
         private final Label renderLabel;
-        private boolean running = false;
+        private final Refresher refresher;
+        private transient Future<?> future = null;
 
-        public CounterThread(Label renderLabel) {
+        public Counter(Label renderLabel, Refresher refresher) {
             this.renderLabel = renderLabel;
+            this.refresher = refresher;
             renderLabel.setData(1);
         }
 
         public void run() {
-            final long startTime = System.currentTimeMillis();
-            final long lifetime = 1000 * 60; // live for a minute.
-
-            try {
-                while (System.currentTimeMillis() < startTime + lifetime) {
-
-                    if (running) {
-                        final Integer number = (Integer) renderLabel.getData();
-                        renderLabel.setValue(number);
-                        renderLabel.setData(number + 1);
-                    }
-
-                    sleep(SLEEP_TIME_IN_MILLIS);
+            refresher.invokeLater(new Runnable() {
+                public void run() {
+                    final Integer number = (Integer) renderLabel.getData();
+                    renderLabel.setValue(number);
+                    renderLabel.setData(number + 1);
                 }
-
-                renderLabel.setValue("[ counter thread expired ]");
-            } catch (InterruptedException e) {
-                renderLabel.setValue("[ counter thread interrupted ]");
-            }
+            });
         }
 
         public void startCounting() {
-            running = true;
+            if (future == null) {
+                future = refresher.scheduleAtFixedRate(this,
+                        SLEEP_TIME_IN_MILLIS, SLEEP_TIME_IN_MILLIS);
+            }
         }
 
         public void stopCounting() {
-            running = false;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
         }
     }
 
@@ -90,11 +87,7 @@ public class ComponentsApplication extends Application {
         final HorizontalLayout layout = new HorizontalLayout();
         final Refresher refresher = new Refresher();
         final Label label = new Label("0");
-        final CounterThread thread = new CounterThread(label);
-
-        thread.start();
-
-        label.setData(0);
+        final Counter counter = new Counter(label, refresher);
 
         panel.addComponent(refresher);
         panel.addComponent(new Label("<div style='margin-bottom:10px'>"
@@ -110,7 +103,7 @@ public class ComponentsApplication extends Application {
 
                     public void buttonClick(ClickEvent event) {
                         refresher.setRefreshInterval(SLEEP_TIME_IN_MILLIS);
-                        thread.startCounting();
+                        counter.startCounting();
                     }
                 }));
 
@@ -120,7 +113,7 @@ public class ComponentsApplication extends Application {
 
                     public void buttonClick(ClickEvent event) {
                         refresher.setRefreshInterval(0);
-                        thread.stopCounting();
+                        counter.stopCounting();
                     }
                 }));
 
@@ -0,0 +1,113 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pool shared by the background tasks of all sessions in this VM.
+ * <p>
+ * Tasks are not submitted here directly, but through a {@link Refresher},
+ * which ties them to its lifecycle.
+ * 
+ * @author Henrik Paul
+ * @see Refresher#scheduleAtFixedRate(Runnable, long, long)
+ */
+public final class BackgroundTaskExecutor {
+
+    private static final AtomicInteger activeTasks = new AtomicInteger();
+    private static int poolSize = Runtime.getRuntime().availableProcessors();
+    private static ScheduledThreadPoolExecutor executor = null;
+
+    private BackgroundTaskExecutor() {
+    }
+
+    static synchronized ScheduledExecutorService get() {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(poolSize,
+                    new ThreadFactory() {
+                        private final AtomicInteger threadCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "background-task-"
+                                            + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * Remove the cancelled tasks from the queue. A cancelled task is
+     * otherwise kept until its time comes, along with the session it
+     * references.
+     */
+    static synchronized void purge() {
+        if (executor != null) {
+            executor.purge();
+        }
+    }
+
+    static void taskStarted() {
+        activeTasks.incrementAndGet();
+    }
+
+    static void taskFinished() {
+        activeTasks.decrementAndGet();
+    }
+
+    /**
+     * @return The number of background tasks, in all sessions, that are
+     *         scheduled or running.
+     */
+    public static int getActiveTaskCount() {
+        return activeTasks.get();
+    }
+
+    /**
+     * Set the number of threads in the shared pool. Takes effect only if
+     * called before the first task is scheduled, or after
+     * {@link #shutdown()}.
+     * 
+     * @param threads
+     *            The number of threads.
+     */
+    public static synchronized void setPoolSize(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "threads must be positive: " + threads);
+        }
+        poolSize = threads;
+    }
+
+    /**
+     * Stop the shared pool, interrupting all running tasks. Call this when the
+     * web application is undeployed.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers one computed value to many sessions.
+ * <p>
+ * Each session subscribes a {@link BroadcastListener} through its
+ * {@link Refresher}. A {@link #broadcast(Object) broadcast} value is handed to
+ * every subscribed refresher, and the listeners receive it on their next poll,
+ * while their application is locked. If several values are broadcast between
+ * two polls, a listener receives only the latest one.
+ * <p>
+ * The broadcaster refers to its subscriptions only weakly; the subscriptions
+ * are held by the refreshers. Sessions that end are thus released without
+ * unsubscribing. This class is thread-safe, and is typically shared between
+ * all sessions, such as in a static field.
+ * 
+ * @author Henrik Paul
+ * @param <T>
+ *            The type of the broadcast values.
+ */
+public class Broadcaster<T> {
+
+    /**
+     * Receives the values broadcast by a {@link Broadcaster}.
+     * 
+     * @author Henrik Paul
+     * @param <T>
+     *            The type of the broadcast values.
+     * @see Broadcaster#subscribe(Refresher, BroadcastListener)
+     */
+    public interface BroadcastListener<T> extends Serializable {
+        /**
+         * Receive a broadcast value. Called while the application of the
+         * subscribed {@link Refresher} is locked, so the UI may be modified
+         * directly.
+         * 
+         * @param value
+         *            The latest value broadcast since the previous call.
+         */
+        public void broadcastReceived(T value);
+    }
+
+    /**
+     * A listener subscribed through a refresher. The pending value is kept in
+     * the subscription itself, so a subscription is queued to its refresher at
+     * most once between two polls.
+     */
+    private class Subscription implements Runnable {
+        private final Refresher refresher;
+        private final BroadcastListener<T> listener;
+        private final AtomicReference<Object> pending = new AtomicReference<Object>(
+                NOTHING_PENDING);
+        private final SubscriptionReference reference;
+
+        Subscription(Refresher refresher, BroadcastListener<T> listener) {
+            this.refresher = refresher;
+            this.listener = listener;
+            reference = new SubscriptionReference(this);
+        }
+
+        void deliver(T value) {
+            if (pending.getAndSet(value) == NOTHING_PENDING) {
+                refresher.invokeLater(this);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public void run() {
+            final Object value = pending.getAndSet(NOTHING_PENDING);
+            if (value != NOTHING_PENDING) {
+                listener.broadcastReceived((T) value);
+            }
+        }
+    }
+
+    private class SubscriptionReference extends WeakReference<Subscription> {
+        SubscriptionReference(Subscription subscription) {
+            super(subscription, collectedSubscriptions);
+        }
+    }
+
+    private static final Object NOTHING_PENDING = new Object();
+
+    private final Map<SubscriptionReference, Boolean> subscriptions = new ConcurrentHashMap<SubscriptionReference, Boolean>();
+    private final ReferenceQueue<Subscription> collectedSubscriptions = new ReferenceQueue<Subscription>();
+
+    /**
+     * Subscribe a listener to the broadcast values. The subscription lasts
+     * until it is {@link #unsubscribe(Refresher, BroadcastListener)
+     * unsubscribed} or the refresher is garbage collected. Subscriptions are
+     * not serialized with the refresher, so a deserialized session needs to
+     * subscribe again.
+     * 
+     * @param refresher
+     *            The refresher through which the values are delivered.
+     * @param listener
+     *            The listener receiving the values.
+     */
+    public void subscribe(Refresher refresher, BroadcastListener<T> listener) {
+        if (refresher == null || listener == null) {
+            throw new NullPointerException(
+                    "refresher and listener may not be null");
+        }
+
+        purge();
+        final Subscription subscription = new Subscription(refresher,
+                listener);
+        refresher.holdSubscription(subscription);
+        subscriptions.put(subscription.reference, Boolean.TRUE);
+    }
+
+    /**
+     * Cancel the subscriptions of a listener through a refresher.
+     * 
+     * @param refresher
+     *            The refresher the listener was subscribed through.
+     * @param listener
+     *            The subscribed listener.
+     */
+    @SuppressWarnings("unchecked")
+    public void unsubscribe(Refresher refresher, BroadcastListener<T> listener) {
+        for (final Object held : refresher.getSubscriptions()) {
+            if (held instanceof Broadcaster.Subscription) {
+                final Subscription subscription = (Subscription) held;
+                if (subscription.listener == listener
+                        && subscriptions.remove(subscription.reference) != null) {
+                    refresher.releaseSubscription(subscription);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver a value to all subscribed listeners. This method may be called
+     * from any thread.
+     * 
+     * @param value
+     *            The value to deliver.
+     */
+    public void broadcast(T value) {
+        purge();
+        for (final SubscriptionReference reference : subscriptions.keySet()) {
+            final Subscription subscription = reference.get();
+            if (subscription != null) {
+                subscription.deliver(value);
+            } else {
+                subscriptions.remove(reference);
+            }
+        }
+    }
+
+    /**
+     * @return The number of subscriptions. Subscriptions of ended sessions are
+     *         counted until they are garbage collected.
+     */
+    public int getSubscriberCount() {
+        purge();
+        return subscriptions.size();
+    }
+
+    private void purge() {
+        for (Reference<? extends Subscription> reference; (reference = collectedSubscriptions
+                .poll()) != null;) {
+            subscriptions.remove(reference);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded buffer of pending updates where only the latest update per key is
+ * kept.
+ * <p>
+ * Putting an update under a key that already has one replaces the older
+ * update, which is counted as conflated. A new key is rejected once the
+ * buffer holds as many keys as its capacity allows. Updates are drained in
+ * the order their keys were first added. This class is thread-safe.
+ * <p>
+ * Pending updates are not serialized; only the capacity and counters are.
+ * 
+ * @author Henrik Paul
+ * @see Refresher#invokeLater(Object, Runnable)
+ */
+public class ConflatingUpdateBuffer implements Serializable {
+    private static final long serialVersionUID = -2148807380398414226L;
+
+    /** The default maximum number of distinct keys. */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private transient Map<Object, Runnable> updates = new LinkedHashMap<Object, Runnable>();
+    private int capacity;
+    private long conflatedCount = 0;
+    private long rejectedCount = 0;
+
+    public ConflatingUpdateBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            The maximum number of distinct keys held at a time.
+     */
+    public ConflatingUpdateBuffer(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Buffer an update, replacing any pending update with the same key.
+     * 
+     * @param key
+     *            The key identifying what the update modifies.
+     * @param update
+     *            The update.
+     * @return <code>true</code> if the update was buffered,
+     *         <code>false</code> if it was rejected because the buffer is
+     *         full.
+     */
+    public synchronized boolean put(Object key, Runnable update) {
+        if (update == null) {
+            throw new NullPointerException("update may not be null");
+        }
+
+        if (updates.containsKey(key)) {
+            updates.put(key, update);
+            conflatedCount++;
+            return true;
+        } else if (updates.size() < capacity) {
+            updates.put(key, update);
+            return true;
+        } else {
+            rejectedCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Remove and return all buffered updates.
+     * 
+     * @return The updates, in the order their keys were first added.
+     */
+    public synchronized List<Runnable> drain() {
+        final List<Runnable> drained = new ArrayList<Runnable>(updates
+                .values());
+        updates.clear();
+        return drained;
+    }
+
+    /**
+     * @return The number of updates currently buffered.
+     */
+    public synchronized int size() {
+        return updates.size();
+    }
+
+    /**
+     * @param capacity
+     *            The maximum number of distinct keys held at a time. Lowering
+     *            the capacity does not discard already buffered updates.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of updates that were replaced by a newer update with
+     *         the same key, and thus never applied.
+     */
+    public synchronized long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    /**
+     * @return The number of updates that were rejected because the buffer was
+     *         full.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        updates = new LinkedHashMap<Object, Runnable>();
+    }
+}
@@ -0,0 +1,98 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+/**
+ * An {@link Refresher.IntervalHintPolicy} that slows down all refreshers when
+ * the server is under load.
+ * <p>
+ * While the {@link RefresherStatistics#getRecentHandlingTime() recent
+ * handling time} of polls in this VM stays under the threshold, no hint is
+ * given. Above it, the refresh interval is stretched by the ratio of the
+ * handling time to the threshold, rounded up to a power of two, up to the
+ * refresher's maximum interval.
+ * <p>
+ * A hint is lowered only once the load has fallen well below it, so that a
+ * load hovering around a step doesn't change the hint, and repaint the
+ * refreshers, on every poll.
+ * 
+ * @author Henrik Paul
+ */
+public class LatencyIntervalHintPolicy implements Refresher.IntervalHintPolicy {
+    private static final long serialVersionUID = -8075404394766232190L;
+
+    /**
+     * How far below the lower edge of its step the load must fall for a hint
+     * to be lowered.
+     */
+    private static final double HYSTERESIS = 0.75;
+
+    private final double thresholdInMillis;
+
+    /**
+     * @param thresholdInMillis
+     *            The handling time, in milliseconds, above which polling is
+     *            slowed down.
+     */
+    public LatencyIntervalHintPolicy(long thresholdInMillis) {
+        if (thresholdInMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "threshold must be positive: " + thresholdInMillis);
+        }
+        this.thresholdInMillis = thresholdInMillis;
+    }
+
+    public long getIntervalHint(Refresher refresher) {
+        final long interval = refresher.getRefreshInterval();
+        if (interval <= 0) {
+            return 0;
+        }
+
+        final double load = RefresherStatistics.getGlobal()
+                .getRecentHandlingTime()
+                / thresholdInMillis;
+
+        long factor = getStep(load);
+        final long currentFactor = getStep((double) refresher
+                .getIntervalHint()
+                / interval);
+        if (factor < currentFactor
+                && load >= currentFactor / 2 * HYSTERESIS) {
+            factor = currentFactor;
+        }
+
+        if (factor <= 1) {
+            return 0;
+        }
+
+        final long maxInterval = Math.max(interval, refresher
+                .getMaxRefreshInterval());
+        return Math.min(interval * factor, maxInterval);
+    }
+
+    /**
+     * @return The smallest power of two at least <code>load</code>, or one
+     *         if there's no load.
+     */
+    private static long getStep(double load) {
+        long step = 1;
+        while (step < load) {
+            step *= 2;
+        }
+        return step;
+    }
+}
@@ -16,8 +16,36 @@
 
 package org.lightframe.components;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
 import org.lightframe.components.client.ui.VRefresher;
 
+import com.vaadin.Application;
+import com.vaadin.data.Property;
+import com.vaadin.service.ApplicationContext;
+import com.vaadin.terminal.gwt.server.WebApplicationContext;
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
 import com.vaadin.ui.AbstractComponent;
@@ -25,17 +53,853 @@ import com.vaadin.ui.AbstractComponent;
 /**
  * A component that enables asynchronous UI changes invoked from external
  * {@link Thread Threads} to be rendered and refreshed in the client.
+ * <p>
+ * External threads should not modify components directly, but pass the
+ * modifications to {@link #invokeLater(Runnable)}. They are then applied
+ * together, while the application is locked, at the start of the next poll.
+ * <p>
+ * Instead of starting threads of its own, the application can run its
+ * background work as tasks of the refresher, such as with
+ * {@link #scheduleAtFixedRate(Runnable, long, long)}. The tasks share one
+ * thread pool, and are cancelled when the refresher is detached or its
+ * session ends. A task still queued when the application is closed in other
+ * ways is cancelled instead of run.
+ * <p>
+ * Background tasks, queued updates and {@link Broadcaster} subscriptions are
+ * not serialized with the refresher, since they hold code that runs in this
+ * VM: a deserialized refresher has none of them.
  * 
  * @author Henrik Paul
  */
 public class Refresher extends AbstractComponent {
+
+    /**
+     * Decides the interval the server asks the clients to poll at, overriding
+     * their refresh interval when it is shorter.
+     * 
+     * @author Henrik Paul
+     * @see Refresher#setIntervalHintPolicy(IntervalHintPolicy)
+     */
+    public interface IntervalHintPolicy extends Serializable {
+        /**
+         * Get the shortest interval a refresher's client should poll at until
+         * the next poll.
+         * 
+         * @param refresher
+         *            The polled refresher.
+         * @return The interval in milliseconds. Zero or less gives no hint.
+         */
+        public long getIntervalHint(Refresher refresher);
+    }
+
+    /**
+     * Times the requests that contain a poll, and records them to the
+     * {@link RefresherStatistics}. There is one recorder per application, so
+     * that a request polling several refreshers is recorded as one poll,
+     * which is idle only if all of its refreshers were. The recorder holds
+     * the statistics of its application.
+     * <p>
+     * The recorders are looked up by application only when a refresher is
+     * attached or detached, or the statistics are asked for, so that the
+     * requests of different sessions don't wait for each other.
+     * 
+     * @author Henrik Paul
+     */
+    private static class PollRecorder implements
+            ApplicationContext.TransactionListener {
+        private static final long serialVersionUID = -4907151447826367410L;
+
+        /*
+         * The recorders are referenced weakly, since each references its
+         * application. They're kept alive by the refreshers and the
+         * application context.
+         */
+        private static final Map<Application, WeakReference<PollRecorder>> recorders = new WeakHashMap<Application, WeakReference<PollRecorder>>();
+
+        private final Application application;
+        private final RefresherStatistics statistics = new RefresherStatistics();
+        private transient Object transaction = null;
+        private long transactionStartNanos = 0;
+        private boolean polled = false;
+        private boolean idlePoll = true;
+        private int refresherCount = 0;
+
+        private PollRecorder(Application application) {
+            this.application = application;
+        }
+
+        /**
+         * Get the recorder of an application, registering it on the first
+         * call.
+         */
+        static PollRecorder attach(Application application) {
+            synchronized (recorders) {
+                PollRecorder recorder = find(application);
+                if (recorder == null) {
+                    recorder = new PollRecorder(application);
+                    recorders.put(application, new WeakReference<PollRecorder>(
+                            recorder));
+                    application.getContext().addTransactionListener(recorder);
+                }
+                recorder.refresherCount++;
+                return recorder;
+            }
+        }
+
+        /**
+         * Unregister the recorder once the last refresher using it is
+         * detached.
+         */
+        static void detach(PollRecorder recorder) {
+            synchronized (recorders) {
+                if (--recorder.refresherCount <= 0) {
+                    if (find(recorder.application) == recorder) {
+                        recorders.remove(recorder.application);
+                    }
+                    recorder.application.getContext()
+                            .removeTransactionListener(recorder);
+                }
+            }
+        }
+
+        /**
+         * Get the statistics of an application.
+         * 
+         * @return The statistics, or <code>null</code> if no refresher is
+         *         attached to the application.
+         */
+        static RefresherStatistics getStatistics(Application application) {
+            synchronized (recorders) {
+                final PollRecorder recorder = find(application);
+                return recorder != null ? recorder.statistics : null;
+            }
+        }
+
+        private static PollRecorder find(Application application) {
+            final WeakReference<PollRecorder> reference = recorders
+                    .get(application);
+            return reference != null ? reference.get() : null;
+        }
+
+        /**
+         * The application context may be shared by several applications in
+         * the same session, so only those of this recorder's are recorded.
+         */
+        public void transactionStart(Application application,
+                Object transactionData) {
+            if (application == this.application) {
+                transaction = transactionData;
+                transactionStartNanos = System.nanoTime();
+                polled = false;
+                idlePoll = true;
+            }
+        }
+
+        void pollReceived(boolean idle) {
+            polled = true;
+            idlePoll &= idle;
+        }
+
+        public void transactionEnd(Application application,
+                Object transactionData) {
+            if (polled && transactionData == transaction) {
+                final long handlingNanos = System.nanoTime()
+                        - transactionStartNanos;
+                statistics.recordPoll(idlePoll, handlingNanos);
+                RefresherStatistics.getGlobal().recordPoll(idlePoll,
+                        handlingNanos);
+                polled = false;
+                transaction = null;
+            }
+        }
+
+        /**
+         * The recorder is still registered to its application context, which
+         * is serialized with the session, so it's only looked up again.
+         */
+        private void readObject(ObjectInputStream in) throws IOException,
+                ClassNotFoundException {
+            in.defaultReadObject();
+            if (refresherCount > 0) {
+                synchronized (recorders) {
+                    if (find(application) == null) {
+                        recorders.put(application,
+                                new WeakReference<PollRecorder>(this));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A background task bound to the lifecycle of the refresher. The task is
+     * cancelled instead of run once the refresher is detached or the
+     * application is closed.
+     * <p>
+     * The task is also the {@link Future} given to the caller, so that
+     * cancelling it through the future releases it as well.
+     * 
+     * @author Henrik Paul
+     */
+    private class ManagedTask implements Runnable, Future<Object> {
+        private final Runnable task;
+        private final boolean periodic;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private volatile Future<?> future = null;
+
+        ManagedTask(Runnable task, boolean periodic) {
+            this.task = task;
+            this.periodic = periodic;
+            BackgroundTaskExecutor.taskStarted();
+            tasks.put(this, Boolean.TRUE);
+        }
+
+        void setFuture(Future<?> future) {
+            this.future = future;
+            if (finished.get()) {
+                future.cancel(false);
+            }
+        }
+
+        public void run() {
+            final Application application = getApplication();
+            if (application == null || !application.isRunning()) {
+                cancel(false);
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                finish();
+                throw e;
+            }
+
+            if (!periodic) {
+                finish();
+            }
+        }
+
+        public boolean cancel(boolean interrupt) {
+            final boolean cancelled = cancelFuture(interrupt);
+            if (cancelled) {
+                BackgroundTaskExecutor.purge();
+            }
+            return cancelled;
+        }
+
+        /**
+         * Cancel the task without removing it from the pool's queue.
+         */
+        boolean cancelFuture(boolean interrupt) {
+            finish();
+            final Future<?> f = future;
+            return f != null && f.cancel(interrupt);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        public Object get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+
+        public Object get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException,
+                TimeoutException {
+            return future.get(timeout, unit);
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                tasks.remove(this);
+                BackgroundTaskExecutor.taskFinished();
+            }
+        }
+    }
+
+    /**
+     * Cancels the background tasks of a refresher when its session ends,
+     * since an expired application is closed without its components being
+     * detached.
+     * 
+     * @author Henrik Paul
+     */
+    private static class TaskCanceller implements HttpSessionBindingListener,
+            Serializable {
+        private static final long serialVersionUID = 2263945271368430158L;
+
+        private final Refresher refresher;
+
+        TaskCanceller(Refresher refresher) {
+            this.refresher = refresher;
+        }
+
+        public void valueBound(HttpSessionBindingEvent event) {
+        }
+
+        public void valueUnbound(HttpSessionBindingEvent event) {
+            refresher.cancelAllTasks();
+        }
+    }
+
     private static final long serialVersionUID = -2818447361687554688L;
 
+    /**
+     * The session attribute holding the session timeout to restore once no
+     * refresher's client is idle.
+     */
+    private static final String ACTIVE_SESSION_TIMEOUT_ATTRIBUTE = Refresher.class
+            .getName()
+            + ".activeSessionTimeout";
+
+    /**
+     * The session attribute holding the number of refreshers whose idle
+     * client has shortened the session timeout.
+     */
+    private static final String IDLE_REFRESHER_COUNT_ATTRIBUTE = Refresher.class
+            .getName()
+            + ".idleRefresherCount";
+
+    /**
+     * The prefix of the session attribute holding a refresher's
+     * {@link TaskCanceller}.
+     */
+    private static final String TASK_CANCELLER_ATTRIBUTE_PREFIX = Refresher.class
+            .getName()
+            + ".taskCanceller.";
+
+    /** The default ceiling for an adaptive refresher's interval. */
+    public static final long DEFAULT_MAX_REFRESH_INTERVAL = 1000 * 30;
+
+    private static volatile IntervalHintPolicy intervalHintPolicy = null;
+
     private long refreshIntervalInMillis = -1;
+    private int jitterPercentage = 0;
+    private long intervalHint = 0;
+    private long maxRefreshIntervalInMillis = DEFAULT_MAX_REFRESH_INTERVAL;
+    private boolean adaptive = false;
+
+    private long hiddenRefreshIntervalInMillis = -1;
+    private long idleTimeoutInMillis = -1;
+    private int idleSessionTimeoutInSeconds = -1;
+    private boolean holdingIdleSessionTimeout = false;
+    private boolean clientIdle = false;
+    private boolean clientHidden = false;
+
+    private transient Queue<Runnable> pendingUpdates = new ConcurrentLinkedQueue<Runnable>();
+    private final ConflatingUpdateBuffer keyedUpdates = new ConflatingUpdateBuffer();
+    private volatile boolean changesPending = false;
+    private boolean paintChanges = false;
+
+    private PollRecorder pollRecorder = null;
+    private transient Map<ManagedTask, Boolean> tasks = new ConcurrentHashMap<ManagedTask, Boolean>();
+    private transient Map<Object, Boolean> subscriptions = new ConcurrentHashMap<Object, Boolean>();
+
+    private String taskCancellerAttribute = null;
+
+    private String pushUrl = null;
+    private transient volatile RefresherPushChannel pushChannel = null;
 
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
-        target.addAttribute("pollinginterval", refreshIntervalInMillis);
+        target.addAttribute(VRefresher.ATTRIBUTE_POLLING_INTERVAL,
+                refreshIntervalInMillis);
+        if (jitterPercentage > 0) {
+            target.addAttribute(VRefresher.ATTRIBUTE_JITTER, jitterPercentage);
+        }
+        if (intervalHint > 0) {
+            target.addAttribute(VRefresher.ATTRIBUTE_INTERVAL_HINT,
+                    intervalHint);
+        }
+        if (hiddenRefreshIntervalInMillis >= 0) {
+            target.addAttribute(VRefresher.ATTRIBUTE_HIDDEN_INTERVAL,
+                    hiddenRefreshIntervalInMillis);
+        }
+        if (idleTimeoutInMillis > 0) {
+            target.addAttribute(VRefresher.ATTRIBUTE_IDLE_TIMEOUT,
+                    idleTimeoutInMillis);
+        }
+
+        if (pushUrl != null) {
+            if (pushChannel == null) {
+                pushChannel = RefresherPushChannel.open(this);
+            }
+            target.addAttribute(VRefresher.ATTRIBUTE_PUSH_URL, pushUrl);
+            target.addAttribute(VRefresher.ATTRIBUTE_PUSH_CHANNEL, pushChannel
+                    .getId());
+        }
+
+        if (adaptive) {
+            target.addAttribute(VRefresher.ATTRIBUTE_ADAPTIVE, true);
+            target.addAttribute(VRefresher.ATTRIBUTE_MAX_POLLING_INTERVAL,
+                    maxRefreshIntervalInMillis);
+            target.addAttribute(VRefresher.ATTRIBUTE_CHANGES, paintChanges);
+            paintChanges = false;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void changeVariables(Object source, Map variables) {
+        super.changeVariables(source, variables);
+
+        if (variables.containsKey(VRefresher.VARIABLE_HIDDEN)) {
+            clientHidden = ((Boolean) variables
+                    .get(VRefresher.VARIABLE_HIDDEN)).booleanValue();
+        }
+
+        if (variables.containsKey(VRefresher.VARIABLE_IDLE)) {
+            setClientIdle(((Boolean) variables.get(VRefresher.VARIABLE_IDLE))
+                    .booleanValue());
+        }
+
+        if (variables.containsKey(VRefresher.VARIABLE_POLL)) {
+            poll();
+        }
+    }
+
+    /**
+     * Handle a poll from the client. Queued updates are applied first. An
+     * adaptive refresher is repainted only if changes were reported since the
+     * previous poll, which tells the client to return to its fastest interval.
+     * The refresher is also repainted if the interval hint has changed, or
+     * if the push channel of the client has been lost.
+     */
+    protected void poll() {
+        // cleared before applying, so that changes marked meanwhile are
+        // seen by the next poll.
+        final boolean changed = changesPending;
+        changesPending = false;
+
+        final boolean idle = applyPendingUpdates() == 0 && !changed;
+        if (pollRecorder != null) {
+            pollRecorder.pollReceived(idle);
+        }
+
+        final RefresherPushChannel channel = pushChannel;
+        if (pushUrl != null && (channel == null || !channel.isOpen())) {
+            /*
+             * The client polls while pushing only once its channel is gone,
+             * such as after the session was deserialized. A new channel is
+             * opened when painted.
+             */
+            pushChannel = null;
+            requestRepaint();
+        }
+
+        final IntervalHintPolicy policy = intervalHintPolicy;
+        final long newIntervalHint = policy != null ? Math.max(0, policy
+                .getIntervalHint(this)) : 0;
+        if (newIntervalHint != intervalHint) {
+            intervalHint = newIntervalHint;
+            requestRepaint();
+        }
+
+        if (adaptive && changed) {
+            paintChanges = true;
+            requestRepaint();
+        }
+    }
+
+    /**
+     * Record the idle state reported by the client, and shorten the session
+     * timeout while the client is idle, if so configured.
+     */
+    private void setClientIdle(final boolean idle) {
+        clientIdle = idle;
+
+        if (idle && idleSessionTimeoutInSeconds >= 0
+                && !holdingIdleSessionTimeout) {
+            holdIdleSessionTimeout();
+        } else if (!idle && holdingIdleSessionTimeout) {
+            releaseIdleSessionTimeout();
+        }
+    }
+
+    /**
+     * Shorten the session timeout. A page may have several refreshers, so the
+     * original timeout and the number of idle refreshers are kept in the
+     * session, and the timeout is restored only when none is idle anymore.
+     */
+    private void holdIdleSessionTimeout() {
+        final HttpSession session = getHttpSession();
+        if (session == null) {
+            return;
+        }
+
+        synchronized (session) {
+            final Integer count = (Integer) session
+                    .getAttribute(IDLE_REFRESHER_COUNT_ATTRIBUTE);
+            if (count == null) {
+                session.setAttribute(ACTIVE_SESSION_TIMEOUT_ATTRIBUTE, session
+                        .getMaxInactiveInterval());
+            }
+            session.setAttribute(IDLE_REFRESHER_COUNT_ATTRIBUTE,
+                    count != null ? count + 1 : 1);
+            session.setMaxInactiveInterval(idleSessionTimeoutInSeconds);
+        }
+        holdingIdleSessionTimeout = true;
+    }
+
+    private void releaseIdleSessionTimeout() {
+        holdingIdleSessionTimeout = false;
+
+        final HttpSession session = getHttpSession();
+        if (session == null) {
+            return;
+        }
+
+        synchronized (session) {
+            final Integer count = (Integer) session
+                    .getAttribute(IDLE_REFRESHER_COUNT_ATTRIBUTE);
+            if (count != null && count > 1) {
+                session.setAttribute(IDLE_REFRESHER_COUNT_ATTRIBUTE, count - 1);
+                return;
+            }
+
+            final Integer activeTimeout = (Integer) session
+                    .getAttribute(ACTIVE_SESSION_TIMEOUT_ATTRIBUTE);
+            if (activeTimeout != null) {
+                session.setMaxInactiveInterval(activeTimeout);
+            }
+            session.removeAttribute(IDLE_REFRESHER_COUNT_ATTRIBUTE);
+            session.removeAttribute(ACTIVE_SESSION_TIMEOUT_ATTRIBUTE);
+        }
+    }
+
+    private HttpSession getHttpSession() {
+        final Application application = getApplication();
+        if (application != null
+                && application.getContext() instanceof WebApplicationContext) {
+            return ((WebApplicationContext) application.getContext())
+                    .getHttpSession();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Apply the queued updates, followed by the keyed updates. Updates queued
+     * while applying are left for the next poll. An exception thrown by an
+     * update is rethrown only after the rest of the batch has been applied.
+     * 
+     * @return The number of updates applied.
+     */
+    private int applyPendingUpdates() {
+        final List<Runnable> batch = new ArrayList<Runnable>();
+        for (Runnable update; (update = pendingUpdates.poll()) != null;) {
+            batch.add(update);
+        }
+        batch.addAll(keyedUpdates.drain());
+
+        RuntimeException firstFailure = null;
+        for (final Runnable update : batch) {
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+            }
+        }
+
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+        return batch.size();
+    }
+
+    /**
+     * Queue a modification of the UI to be applied at the start of the next
+     * poll. This method may be called from any thread.
+     * <p>
+     * The update is run in the request thread, while the application is
+     * locked, together with all other updates queued since the previous poll.
+     * The client is then sent all the resulting changes in one response.
+     * 
+     * @param update
+     *            The modification to apply.
+     * @see #markChanged()
+     */
+    public void invokeLater(final Runnable update) {
+        if (update == null) {
+            throw new NullPointerException("update may not be null");
+        }
+
+        pendingUpdates.add(update);
+        markChanged();
+    }
+
+    /**
+     * Buffer a modification of the UI to be applied at the start of the next
+     * poll, replacing any modification still pending under the same key. This
+     * method may be called from any thread.
+     * <p>
+     * Use this for producers that update the same thing faster than the
+     * client polls: only the latest update per key is kept, so the memory
+     * used stays bounded regardless of the update rate.
+     * 
+     * @param key
+     *            The key identifying what is being modified, such as the
+     *            modified component or property.
+     * @param update
+     *            The modification to apply.
+     * @return <code>true</code> if the update was buffered,
+     *         <code>false</code> if the buffer was full.
+     * @see #getUpdateBuffer()
+     */
+    public boolean invokeLater(final Object key, final Runnable update) {
+        final boolean buffered = keyedUpdates.put(key, update);
+        if (buffered) {
+            markChanged();
+        }
+        return buffered;
+    }
+
+    /**
+     * Set the value of a {@link Property} at the start of the next poll. Only
+     * the latest pending value per property is kept. This method may be called
+     * from any thread.
+     * 
+     * @param property
+     *            The property to modify.
+     * @param value
+     *            The new value.
+     * @return <code>true</code> if the value was buffered, <code>false</code>
+     *         if the buffer was full.
+     * @see #invokeLater(Object, Runnable)
+     */
+    public boolean setValueLater(final Property property, final Object value) {
+        return invokeLater(property, new Runnable() {
+            public void run() {
+                property.setValue(value);
+            }
+        });
+    }
+
+    /**
+     * Get the buffer of the keyed updates, for adjusting its capacity or
+     * reading how many updates were conflated or rejected.
+     * 
+     * @return The buffer used by {@link #invokeLater(Object, Runnable)}.
+     */
+    public ConflatingUpdateBuffer getUpdateBuffer() {
+        return keyedUpdates;
+    }
+
+    /**
+     * Keep a {@link Broadcaster} subscription alive for as long as this
+     * refresher is. Subscriptions are not serialized.
+     */
+    void holdSubscription(final Object subscription) {
+        subscriptions.put(subscription, Boolean.TRUE);
+    }
+
+    void releaseSubscription(final Object subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    Collection<Object> getSubscriptions() {
+        return subscriptions.keySet();
+    }
+
+    /**
+     * Inform the refresher that the UI has been changed from an external
+     * {@link Thread}. This method may be called from any thread.
+     * <p>
+     * An adaptive refresher backs off while no changes are reported, and
+     * resumes its fastest interval after the next poll once this method has
+     * been called. Non-adaptive refreshers ignore this.
+     * 
+     * @see #setAdaptive(boolean)
+     */
+    public void markChanged() {
+        changesPending = true;
+
+        final RefresherPushChannel channel = pushChannel;
+        if (channel != null) {
+            channel.signal();
+        }
+    }
+
+    @Override
+    public void attach() {
+        super.attach();
+        pollRecorder = PollRecorder.attach(getApplication());
+    }
+
+    @Override
+    public void detach() {
+        if (pollRecorder != null) {
+            PollRecorder.detach(pollRecorder);
+            pollRecorder = null;
+        }
+        if (holdingIdleSessionTimeout) {
+            releaseIdleSessionTimeout();
+        }
+        closePushChannel();
+        cancelAllTasks();
+        releaseTaskCanceller();
+        super.detach();
+    }
+
+    /**
+     * Run a task once in the background. The task should modify the UI only
+     * through {@link #invokeLater(Runnable)}.
+     * 
+     * @param task
+     *            The task to run.
+     * @return The task's {@link Future}, for cancelling it.
+     * @throws IllegalStateException
+     *             if the refresher isn't attached to an {@link Application}.
+     * @throws RejectedExecutionException
+     *             if the {@link BackgroundTaskExecutor} has been shut down.
+     */
+    public Future<?> execute(final Runnable task) {
+        return schedule(task, 0);
+    }
+
+    /**
+     * Run a task once in the background after a delay. The task should modify
+     * the UI only through {@link #invokeLater(Runnable)}.
+     * 
+     * @param task
+     *            The task to run.
+     * @param delayInMillis
+     *            The delay in milliseconds.
+     * @return The task's {@link Future}, for cancelling it.
+     * @throws IllegalStateException
+     *             if the refresher isn't attached to an {@link Application}.
+     * @throws RejectedExecutionException
+     *             if the {@link BackgroundTaskExecutor} has been shut down.
+     */
+    public Future<?> schedule(final Runnable task, final long delayInMillis) {
+        final ManagedTask managedTask = newManagedTask(task, false);
+        try {
+            managedTask.setFuture(BackgroundTaskExecutor.get().schedule(
+                    managedTask, delayInMillis, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            managedTask.finish();
+            throw e;
+        }
+        return managedTask;
+    }
+
+    /**
+     * Run a task repeatedly in the background until it is cancelled, throws an
+     * exception, or the refresher is detached. The task should modify the UI
+     * only through {@link #invokeLater(Runnable)}.
+     * 
+     * @param task
+     *            The task to run.
+     * @param initialDelayInMillis
+     *            The delay before the first run, in milliseconds.
+     * @param periodInMillis
+     *            The time between the starts of two runs, in milliseconds.
+     * @return The task's {@link Future}, for cancelling it.
+     * @throws IllegalStateException
+     *             if the refresher isn't attached to an {@link Application}.
+     * @throws RejectedExecutionException
+     *             if the {@link BackgroundTaskExecutor} has been shut down.
+     */
+    public Future<?> scheduleAtFixedRate(final Runnable task,
+            final long initialDelayInMillis, final long periodInMillis) {
+        final ManagedTask managedTask = newManagedTask(task, true);
+        try {
+            managedTask.setFuture(BackgroundTaskExecutor.get()
+                    .scheduleAtFixedRate(managedTask, initialDelayInMillis,
+                            periodInMillis, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            managedTask.finish();
+            throw e;
+        }
+        return managedTask;
+    }
+
+    private ManagedTask newManagedTask(final Runnable task,
+            final boolean periodic) {
+        if (task == null) {
+            throw new NullPointerException("task may not be null");
+        } else if (getApplication() == null) {
+            throw new IllegalStateException(
+                    "Refresher is not attached to an application");
+        }
+
+        if (taskCancellerAttribute == null) {
+            final HttpSession session = getHttpSession();
+            if (session != null) {
+                taskCancellerAttribute = TASK_CANCELLER_ATTRIBUTE_PREFIX
+                        + UUID.randomUUID();
+                session.setAttribute(taskCancellerAttribute,
+                        new TaskCanceller(this));
+            }
+        }
+        return new ManagedTask(task, periodic);
+    }
+
+    private void releaseTaskCanceller() {
+        final HttpSession session = getHttpSession();
+        if (taskCancellerAttribute != null && session != null) {
+            session.removeAttribute(taskCancellerAttribute);
+        }
+        taskCancellerAttribute = null;
+    }
+
+    /**
+     * Cancel all background tasks of this refresher, interrupting the running
+     * ones. This is done automatically when the refresher is detached.
+     */
+    public void cancelAllTasks() {
+        boolean cancelled = false;
+        for (final ManagedTask task : tasks.keySet()) {
+            cancelled |= task.cancelFuture(true);
+        }
+        if (cancelled) {
+            BackgroundTaskExecutor.purge();
+        }
+    }
+
+    /**
+     * @return The number of this refresher's background tasks that are
+     *         scheduled or running.
+     * @see BackgroundTaskExecutor#getActiveTaskCount()
+     */
+    public int getActiveTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Get the statistics of the polls received by all refreshers in this
+     * refresher's session. The statistics of all sessions are available
+     * through {@link RefresherStatistics#getGlobal()} and JMX.
+     * 
+     * @return The session's statistics, or <code>null</code> if the refresher
+     *         isn't attached to an {@link Application}.
+     */
+    public RefresherStatistics getSessionStatistics() {
+        final PollRecorder recorder = pollRecorder;
+        return recorder != null ? recorder.statistics : null;
+    }
+
+    /**
+     * @see RefresherStatistics#forApplication(Application)
+     */
+    static RefresherStatistics getStatistics(Application application) {
+        return PollRecorder.getStatistics(application);
+    }
+
+    private void closePushChannel() {
+        final RefresherPushChannel channel = pushChannel;
+        if (channel != null) {
+            pushChannel = null;
+            channel.close();
+        }
     }
 
     /**
@@ -60,8 +924,237 @@ public class Refresher extends AbstractComponent {
         return refreshIntervalInMillis;
     }
 
+    /**
+     * Spread the polls of clients that were given the same interval at the
+     * same time, by randomly varying each interval.
+     * 
+     * @param percentage
+     *            How much each interval may deviate from the nominal interval,
+     *            between 0 and 100 percent.
+     */
+    public void setJitter(final int percentage) {
+        if (percentage < 0 || percentage > 100) {
+            throw new IllegalArgumentException(
+                    "percentage must be between 0 and 100: " + percentage);
+        }
+        jitterPercentage = percentage;
+        requestRepaint();
+    }
+
+    /**
+     * @return The random deviation of each interval, in percent.
+     * @see #setJitter(int)
+     */
+    public int getJitter() {
+        return jitterPercentage;
+    }
+
+    /**
+     * Set the policy that decides the interval hints sent to the clients of
+     * all refreshers in this VM. The hint is evaluated on every poll, and sent
+     * to the client only when it changes.
+     * 
+     * @param policy
+     *            The policy, or <code>null</code> to send no hints.
+     * @see LatencyIntervalHintPolicy
+     */
+    public static void setIntervalHintPolicy(final IntervalHintPolicy policy) {
+        intervalHintPolicy = policy;
+    }
+
+    /**
+     * @return The policy deciding the interval hints, or <code>null</code>
+     * @see #setIntervalHintPolicy(IntervalHintPolicy)
+     */
+    public static IntervalHintPolicy getIntervalHintPolicy() {
+        return intervalHintPolicy;
+    }
+
+    /**
+     * @return The interval hint last sent to the client, in milliseconds, or
+     *         zero if none.
+     * @see #setIntervalHintPolicy(IntervalHintPolicy)
+     */
+    public long getIntervalHint() {
+        return intervalHint;
+    }
+
+    /**
+     * Define how the client polls while its page is hidden, such as in a
+     * background tab.
+     * 
+     * @param intervalInMillis
+     *            The interval to slow down to while hidden. Zero pauses polling
+     *            until the page is shown again. A negative value, the default,
+     *            keeps polling as usual.
+     */
+    public void setHiddenRefreshInterval(final long intervalInMillis) {
+        hiddenRefreshIntervalInMillis = intervalInMillis;
+        requestRepaint();
+    }
+
+    /**
+     * @return The refresh interval used while the page is hidden, in
+     *         milliseconds.
+     * @see #setHiddenRefreshInterval(long)
+     */
+    public long getHiddenRefreshInterval() {
+        return hiddenRefreshIntervalInMillis;
+    }
+
+    /**
+     * Stop polling once the user has given no input for a while. Polling
+     * resumes on the next key press or mouse action. Since a client that
+     * stops polling no longer keeps its session alive, the session may then
+     * expire.
+     * 
+     * @param timeoutInMillis
+     *            How long the user may be idle, in milliseconds. Zero or less,
+     *            the default, polls regardless of the user.
+     * @see #setIdleSessionTimeout(int)
+     */
+    public void setIdleTimeout(final long timeoutInMillis) {
+        idleTimeoutInMillis = timeoutInMillis;
+        requestRepaint();
+    }
+
+    /**
+     * @return The time the user may be idle before polling stops, in
+     *         milliseconds.
+     * @see #setIdleTimeout(long)
+     */
+    public long getIdleTimeout() {
+        return idleTimeoutInMillis;
+    }
+
+    /**
+     * Shorten the session timeout while the client reports being idle, so that
+     * abandoned sessions expire and release their memory sooner. The original
+     * timeout is restored when the user returns.
+     * 
+     * @param timeoutInSeconds
+     *            The session timeout while idle, in seconds. A negative value,
+     *            the default, leaves the session timeout alone.
+     * @see #setIdleTimeout(long)
+     */
+    public void setIdleSessionTimeout(final int timeoutInSeconds) {
+        idleSessionTimeoutInSeconds = timeoutInSeconds;
+    }
+
+    /**
+     * @return The session timeout while idle, in seconds.
+     * @see #setIdleSessionTimeout(int)
+     */
+    public int getIdleSessionTimeout() {
+        return idleSessionTimeoutInSeconds;
+    }
+
+    /**
+     * @return <code>true</code> if the client has reported that the user is
+     *         idle, and has stopped polling.
+     * @see #setIdleTimeout(long)
+     */
+    public boolean isClientIdle() {
+        return clientIdle;
+    }
+
+    /**
+     * @return <code>true</code> if the client has reported that its page is
+     *         hidden.
+     * @see #setHiddenRefreshInterval(long)
+     */
+    public boolean isClientHidden() {
+        return clientHidden;
+    }
+
+    /**
+     * Define whether the refresher should adapt its interval to the amount of
+     * changes on the server.
+     * <p>
+     * An adaptive refresher doubles its interval after each poll that found
+     * no changes, up to the {@link #setMaxRefreshInterval(long) maximum
+     * interval}. Once {@link #markChanged()} is called, the client returns to
+     * the {@link #setRefreshInterval(long) refresh interval}.
+     * 
+     * @param adaptive
+     *            <code>true</code> to enable the adaptive mode.
+     */
+    public void setAdaptive(final boolean adaptive) {
+        this.adaptive = adaptive;
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if the refresher is in the adaptive mode.
+     * @see #setAdaptive(boolean)
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Define the ceiling for the interval of an adaptive refresher.
+     * 
+     * @param intervalInMillis
+     *            The longest interval in milliseconds the client will back off
+     *            to. Values less than the refresh interval are treated as the
+     *            refresh interval.
+     * @see #setAdaptive(boolean)
+     */
+    public void setMaxRefreshInterval(final long intervalInMillis) {
+        maxRefreshIntervalInMillis = intervalInMillis;
+        requestRepaint();
+    }
+
+    /**
+     * @return The ceiling for the interval of an adaptive refresher, in
+     *         milliseconds.
+     * @see #setMaxRefreshInterval(long)
+     */
+    public long getMaxRefreshInterval() {
+        return maxRefreshIntervalInMillis;
+    }
+
+    /**
+     * Switch the refresher to push mode, or back to polling.
+     * <p>
+     * In push mode the client keeps a long-poll open against a
+     * {@link RefresherPushServlet}, which is released as soon as
+     * {@link #markChanged()} is called. Only then does the client fetch the
+     * changes, so an idle client costs one request per servlet timeout. The
+     * refresh interval is used as the retry delay if the long-poll fails.
+     * 
+     * @param url
+     *            The URL the {@link RefresherPushServlet} is mapped to, as
+     *            seen from the browser. <code>null</code> returns to polling.
+     */
+    public void setPushUrl(final String url) {
+        pushUrl = url;
+        if (url == null) {
+            closePushChannel();
+        }
+        requestRepaint();
+    }
+
+    /**
+     * @return The URL of the {@link RefresherPushServlet}, or
+     *         <code>null</code> if the refresher is polling.
+     * @see #setPushUrl(String)
+     */
+    public String getPushUrl() {
+        return pushUrl;
+    }
+
     @Override
     public String getTag() {
         return VRefresher.TAGNAME;
     }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        pendingUpdates = new ConcurrentLinkedQueue<Runnable>();
+        tasks = new ConcurrentHashMap<ManagedTask, Boolean>();
+        subscriptions = new ConcurrentHashMap<Object, Boolean>();
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009 Henrik Paul.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components.client.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.Event.NativePreviewEvent;
+import com.google.gwt.user.client.Event.NativePreviewHandler;
+
+/**
+ * Tracks whether the page is hidden and when the user last gave any input,
+ * and resumes paused {@link VRefresher VRefreshers} when either changes.
+ * 
+ * @author Henrik Paul
+ */
+class RefresherActivityMonitor implements NativePreviewHandler {
+
+    private static RefresherActivityMonitor instance = null;
+
+    private final List<VRefresher> refreshers = new ArrayList<VRefresher>();
+    private long lastActivityTime = System.currentTimeMillis();
+    private boolean hidden;
+
+    private RefresherActivityMonitor() {
+        hidden = isDocumentHidden();
+        Event.addNativePreviewHandler(this);
+        listenToVisibilityChanges();
+    }
+
+    static RefresherActivityMonitor get() {
+        if (instance == null) {
+            instance = new RefresherActivityMonitor();
+        }
+        return instance;
+    }
+
+    void register(VRefresher refresher) {
+        if (!refreshers.contains(refresher)) {
+            refreshers.add(refresher);
+        }
+    }
+
+    void unregister(VRefresher refresher) {
+        refreshers.remove(refresher);
+    }
+
+    long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    boolean isHidden() {
+        return hidden;
+    }
+
+    public void onPreviewNativeEvent(NativePreviewEvent event) {
+        switch (event.getTypeInt()) {
+        case Event.ONKEYDOWN:
+        case Event.ONMOUSEDOWN:
+        case Event.ONMOUSEMOVE:
+        case Event.ONMOUSEWHEEL:
+            lastActivityTime = System.currentTimeMillis();
+            resumeAll();
+            break;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private void onVisibilityChange() {
+        hidden = isDocumentHidden();
+        lastActivityTime = System.currentTimeMillis();
+        resumeAll();
+    }
+
+    private void resumeAll() {
+        for (final VRefresher refresher : refreshers
+                .toArray(new VRefresher[refreshers.size()])) {
+            refresher.resume();
+        }
+    }
+
+    private static native boolean isDocumentHidden()
+    /*-{
+        return !!($doc.hidden || $doc.webkitHidden || $doc.msHidden);
+    }-*/;
+
+    private native void listenToVisibilityChanges()
+    /*-{
+        if (!$doc.addEventListener) {
+            return;
+        }
+        var monitor = this;
+        var handler = function() {
+            monitor.@org.lightframe.components.client.ui.RefresherActivityMonitor::onVisibilityChange()();
+        };
+        $doc.addEventListener("visibilitychange", handler, false);
+        $doc.addEventListener("webkitvisibilitychange", handler, false);
+        $doc.addEventListener("msvisibilitychange", handler, false);
+    }-*/;
+}
@@ -0,0 +1,168 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vaadin.Application;
+
+/**
+ * A channel through which a {@link Refresher} in push mode releases the
+ * client's pending long-poll held by the {@link RefresherPushServlet}.
+ * <p>
+ * Channels are registered in a static, VM-wide registry under an
+ * unguessable identifier, so that the servlet can find them without access
+ * to the session.
+ * <p>
+ * A channel holds its refresher only weakly. Since an expired application is
+ * closed without its components being detached, a channel is also dropped
+ * from the registry once its refresher is garbage collected or its
+ * application is no longer running.
+ * 
+ * @author Henrik Paul
+ */
+class RefresherPushChannel {
+
+    private static final Map<String, RefresherPushChannel> channels = new ConcurrentHashMap<String, RefresherPushChannel>();
+    private static final ReferenceQueue<Refresher> collectedRefreshers = new ReferenceQueue<Refresher>();
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * A weak reference to the refresher of a channel, which remembers the
+     * channel's identifier for purging it after the refresher is collected.
+     * 
+     * @author Henrik Paul
+     */
+    private static class RefresherReference extends WeakReference<Refresher> {
+        private final String id;
+
+        RefresherReference(Refresher refresher, String id) {
+            super(refresher, collectedRefreshers);
+            this.id = id;
+        }
+    }
+
+    private final String id;
+    private final RefresherReference refresher;
+    private boolean signaled = false;
+
+    private RefresherPushChannel(Refresher refresher, String id) {
+        this.id = id;
+        this.refresher = new RefresherReference(refresher, id);
+    }
+
+    /**
+     * Open and register a new channel.
+     * 
+     * @param refresher
+     *            The refresher that signals the channel.
+     */
+    static RefresherPushChannel open(Refresher refresher) {
+        purge();
+        final String id = new BigInteger(130, random).toString(32);
+        final RefresherPushChannel channel = new RefresherPushChannel(
+                refresher, id);
+        channels.put(id, channel);
+        return channel;
+    }
+
+    /**
+     * @return The channel registered with <code>id</code>, or
+     *         <code>null</code> if there is none, or its refresher's
+     *         application has ended.
+     */
+    static RefresherPushChannel get(String id) {
+        purge();
+        final RefresherPushChannel channel = id != null ? channels.get(id)
+                : null;
+        if (channel != null && !channel.isLive()) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
+    private static void purge() {
+        for (Reference<? extends Refresher> reference; (reference = collectedRefreshers
+                .poll()) != null;) {
+            channels.remove(((RefresherReference) reference).id);
+        }
+    }
+
+    private boolean isLive() {
+        final Refresher r = refresher.get();
+        final Application application = r != null ? r.getApplication() : null;
+        return application != null && application.isRunning();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return <code>true</code> if the channel is still registered.
+     */
+    boolean isOpen() {
+        return channels.get(id) == this;
+    }
+
+    /**
+     * Unregister the channel, and release any waiting long-poll.
+     */
+    void close() {
+        channels.remove(id);
+        signal();
+    }
+
+    /**
+     * Release the waiting long-poll, or the next one if none is waiting.
+     */
+    synchronized void signal() {
+        signaled = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the channel is signaled.
+     * 
+     * @param timeoutInMillis
+     *            The longest time to wait.
+     * @return <code>true</code> if the channel was signaled,
+     *         <code>false</code> if the wait timed out.
+     * @throws InterruptedException
+     */
+    synchronized boolean await(long timeoutInMillis)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutInMillis;
+        long remaining = timeoutInMillis;
+
+        while (!signaled && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        final boolean wasSignaled = signaled;
+        signaled = false;
+        return wasSignaled;
+    }
+}
@@ -0,0 +1,97 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.IOException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.lightframe.components.client.ui.VRefresher;
+
+/**
+ * The server end of the long-poll used by {@link Refresher Refreshers} in
+ * push mode.
+ * <p>
+ * A long-poll request names its channel with the
+ * {@value VRefresher#PARAMETER_PUSH_CHANNEL} parameter, and is held until the
+ * refresher is {@link Refresher#markChanged() marked as changed} or the
+ * timeout passes. The response body is
+ * {@value VRefresher#PUSH_RESPONSE_CHANGED} if the client should fetch the
+ * changes, and {@value VRefresher#PUSH_RESPONSE_TIMEOUT} otherwise. Unknown
+ * channels get a <code>404</code>.
+ * <p>
+ * Map the servlet in <code>web.xml</code> next to the application servlet,
+ * and give its URL to {@link Refresher#setPushUrl(String)}. The init
+ * parameter <code>timeout</code> sets how long a request is held, in
+ * milliseconds. Each held request occupies a container thread, so size the
+ * container's thread pool for the number of concurrent clients.
+ * 
+ * @author Henrik Paul
+ */
+public class RefresherPushServlet extends HttpServlet {
+    private static final long serialVersionUID = 4620911587370290436L;
+
+    /** The default time a long-poll is held, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 1000 * 30;
+
+    private long timeoutInMillis = DEFAULT_TIMEOUT;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+
+        final String timeout = config.getInitParameter("timeout");
+        if (timeout != null) {
+            try {
+                timeoutInMillis = Long.parseLong(timeout);
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid timeout: " + timeout, e);
+            }
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException,
+            IOException {
+        final RefresherPushChannel channel = RefresherPushChannel.get(request
+                .getParameter(VRefresher.PARAMETER_PUSH_CHANNEL));
+
+        if (channel == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        boolean changed;
+        try {
+            changed = channel.await(timeoutInMillis);
+        } catch (InterruptedException e) {
+            // the container is shutting down, let the client try again.
+            changed = false;
+        }
+
+        response.setContentType("text/plain");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(
+                changed ? VRefresher.PUSH_RESPONSE_CHANGED
+                        : VRefresher.PUSH_RESPONSE_TIMEOUT);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009 Henrik Paul.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components.client.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.user.client.Timer;
+import com.vaadin.terminal.gwt.client.ApplicationConnection;
+
+/**
+ * A single timer that drives the polls of all {@link VRefresher VRefreshers}
+ * on the page.
+ * <p>
+ * The scheduler ticks at the shortest active interval. On each tick, every
+ * refresher that is due within half of that interval queues its poll, and
+ * the queued polls are sent in one request per {@link ApplicationConnection}.
+ * 
+ * @author Henrik Paul
+ */
+class RefresherScheduler extends Timer {
+
+    private static RefresherScheduler instance = null;
+
+    private final List<VRefresher> refreshers = new ArrayList<VRefresher>();
+
+    private RefresherScheduler() {
+    }
+
+    static RefresherScheduler get() {
+        if (instance == null) {
+            instance = new RefresherScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Start driving the polls of a refresher, or take its changed poll time
+     * into account if it is already registered.
+     */
+    void register(VRefresher refresher) {
+        if (!refreshers.contains(refresher)) {
+            refreshers.add(refresher);
+        }
+        reschedule();
+    }
+
+    void unregister(VRefresher refresher) {
+        if (refreshers.remove(refresher)) {
+            reschedule();
+        }
+    }
+
+    @Override
+    public void run() {
+        final long now = System.currentTimeMillis();
+        final long alignmentWindow = getShortestInterval() / 2;
+        final List<ApplicationConnection> clients = new ArrayList<ApplicationConnection>();
+
+        for (final VRefresher refresher : refreshers
+                .toArray(new VRefresher[refreshers.size()])) {
+            if (refresher.getNextPollTime() <= now + alignmentWindow
+                    && refresher.queuePoll(now)) {
+                if (!clients.contains(refresher.getClient())) {
+                    clients.add(refresher.getClient());
+                }
+            }
+        }
+
+        for (final ApplicationConnection client : clients) {
+            client.sendPendingVariableChanges();
+        }
+
+        reschedule();
+    }
+
+    private void reschedule() {
+        cancel();
+
+        long nextPollTime = Long.MAX_VALUE;
+        for (final VRefresher refresher : refreshers) {
+            nextPollTime = Math.min(nextPollTime, refresher.getNextPollTime());
+        }
+
+        if (nextPollTime != Long.MAX_VALUE) {
+            final long delay = nextPollTime - System.currentTimeMillis();
+            // Timer refuses non-positive delays
+            schedule((int) Math.max(1, delay));
+        }
+    }
+
+    private long getShortestInterval() {
+        long shortest = Long.MAX_VALUE;
+        for (final VRefresher refresher : refreshers) {
+            if (refresher.getNextPollTime() != Long.MAX_VALUE) {
+                shortest = Math.min(shortest, refresher.getCurrentInterval());
+            }
+        }
+        return shortest == Long.MAX_VALUE ? 0 : shortest;
+    }
+}
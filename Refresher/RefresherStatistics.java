@@ -0,0 +1,206 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.vaadin.Application;
+
+/**
+ * Counters describing the polls received by {@link Refresher Refreshers}.
+ * <p>
+ * Every poll is recorded both in the statistics of its {@link Application},
+ * that is, its session, and in the global statistics. The global statistics
+ * are registered in the platform MBean server under {@value #OBJECT_NAME} the
+ * first time they are used. This class is thread-safe, and its counters are
+ * updated without locking.
+ * <p>
+ * A poll is counted as idle if it delivered no queued updates and no
+ * {@link Refresher#markChanged() changes were marked} for it. The response
+ * to an idle poll may still carry changes, made while handling the request
+ * or without informing the refresher.
+ * 
+ * @author Henrik Paul
+ */
+public class RefresherStatistics implements RefresherStatisticsMBean,
+        Serializable {
+    private static final long serialVersionUID = 5271853005468957364L;
+
+    /** The JMX name of the global statistics. */
+    public static final String OBJECT_NAME = "org.lightframe.components:type=RefresherStatistics";
+
+    private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100,
+            200, 500, 1000, 2000, 5000 };
+
+    /** The weight of the newest sample in the moving average is 1/8. */
+    private static final int MOVING_AVERAGE_SHIFT = 3;
+
+    private static volatile RefresherStatistics global = null;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong idlePolls = new AtomicLong();
+    private final AtomicLong totalHandlingNanos = new AtomicLong();
+    private final AtomicLong recentHandlingNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(
+            BUCKET_BOUNDS.length + 1);
+
+    /**
+     * Get the statistics of all polls in this VM, registering them to JMX on
+     * the first call.
+     */
+    public static RefresherStatistics getGlobal() {
+        final RefresherStatistics statistics = global;
+        if (statistics != null) {
+            return statistics;
+        }
+
+        synchronized (RefresherStatistics.class) {
+            if (global == null) {
+                final RefresherStatistics newGlobal = new RefresherStatistics();
+                try {
+                    final MBeanServer server = ManagementFactory
+                            .getPlatformMBeanServer();
+                    final ObjectName name = new ObjectName(OBJECT_NAME);
+                    if (!server.isRegistered(name)) {
+                        server.registerMBean(newGlobal, name);
+                    }
+                } catch (JMException e) {
+                    // JMX is only for monitoring; the counters still work.
+                }
+                global = newGlobal;
+            }
+            return global;
+        }
+    }
+
+    /**
+     * Unregister the global statistics from JMX. Call this when the web
+     * application is undeployed, so that the MBean doesn't keep the class
+     * loader alive.
+     */
+    public static synchronized void unregisterGlobal() {
+        if (global != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                // not registered by us
+            }
+            global = null;
+        }
+    }
+
+    /**
+     * Get the statistics of the polls received by one {@link Application}.
+     * The statistics are kept while the application has refreshers attached.
+     * 
+     * @return The statistics, or <code>null</code> if no refresher is
+     *         attached to the application.
+     * @see Refresher#getSessionStatistics()
+     */
+    public static RefresherStatistics forApplication(Application application) {
+        return Refresher.getStatistics(application);
+    }
+
+    /**
+     * Record a poll.
+     * 
+     * @param idle
+     *            <code>true</code> if the poll delivered no updates or marked
+     *            changes.
+     * @param handlingNanos
+     *            The time it took to handle the request containing the poll,
+     *            in nanoseconds.
+     */
+    void recordPoll(boolean idle, long handlingNanos) {
+        polls.incrementAndGet();
+        if (idle) {
+            idlePolls.incrementAndGet();
+        }
+        totalHandlingNanos.addAndGet(handlingNanos);
+        histogram.incrementAndGet(getBucket(handlingNanos / 1000000));
+
+        long average;
+        long newAverage;
+        do {
+            average = recentHandlingNanos.get();
+            newAverage = average == 0 ? handlingNanos : average
+                    + ((handlingNanos - average) >> MOVING_AVERAGE_SHIFT);
+        } while (!recentHandlingNanos.compareAndSet(average, newAverage));
+    }
+
+    private static int getBucket(long millis) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (millis <= BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    public long getIdlePollCount() {
+        return idlePolls.get();
+    }
+
+    public double getIdlePollRatio() {
+        final long pollCount = polls.get();
+        return pollCount > 0 ? (double) idlePolls.get() / pollCount : 0;
+    }
+
+    public double getMeanHandlingTime() {
+        final long pollCount = polls.get();
+        return pollCount > 0 ? totalHandlingNanos.get() / 1000000.0
+                / pollCount : 0;
+    }
+
+    public double getRecentHandlingTime() {
+        return recentHandlingNanos.get() / 1000000.0;
+    }
+
+    public long[] getHandlingTimeBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    public long[] getHandlingTimeHistogram() {
+        final long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        polls.set(0);
+        idlePolls.set(0);
+        totalHandlingNanos.set(0);
+        recentHandlingNanos.set(0);
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+    }
+}
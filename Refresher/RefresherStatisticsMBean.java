@@ -0,0 +1,73 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+/**
+ * The JMX management interface of {@link RefresherStatistics}.
+ * 
+ * @author Henrik Paul
+ */
+public interface RefresherStatisticsMBean {
+    /**
+     * @return The number of polls received.
+     */
+    public long getPollCount();
+
+    /**
+     * @return The number of polls that delivered no queued updates, and for
+     *         which no changes were marked. This doesn't inspect the response,
+     *         which may still carry changes made in other ways.
+     */
+    public long getIdlePollCount();
+
+    /**
+     * @return The share of idle polls, between 0 and 1.
+     * @see #getIdlePollCount()
+     */
+    public double getIdlePollRatio();
+
+    /**
+     * @return The mean time it took to handle a request containing a poll, in
+     *         milliseconds.
+     */
+    public double getMeanHandlingTime();
+
+    /**
+     * @return An exponentially weighted moving average of the time it took to
+     *         handle requests containing a poll, in milliseconds. Unlike the
+     *         mean, this follows the current load.
+     */
+    public double getRecentHandlingTime();
+
+    /**
+     * @return The inclusive upper bounds of the handling time histogram
+     *         buckets, in milliseconds. The last bucket, not listed here, has
+     *         no upper bound.
+     */
+    public long[] getHandlingTimeBucketBounds();
+
+    /**
+     * @return The number of polls per handling time bucket. The array is one
+     *         longer than {@link #getHandlingTimeBucketBounds()}.
+     */
+    public long[] getHandlingTimeHistogram();
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset();
+}
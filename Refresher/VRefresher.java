@@ -18,6 +18,13 @@
 package org.lightframe.components.client.ui;
 
 import com.google.gwt.dom.client.Document;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.user.client.Random;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.terminal.gwt.client.ApplicationConnection;
@@ -29,57 +36,337 @@ public class VRefresher extends Widget implements Paintable {
 
     public static final String TAGNAME = "refresher";
 
+    public static final String ATTRIBUTE_POLLING_INTERVAL = "pollinginterval";
+    public static final String ATTRIBUTE_MAX_POLLING_INTERVAL = "maxpollinginterval";
+    public static final String ATTRIBUTE_ADAPTIVE = "adaptive";
+    public static final String ATTRIBUTE_CHANGES = "changes";
+    public static final String ATTRIBUTE_JITTER = "jitter";
+    public static final String ATTRIBUTE_INTERVAL_HINT = "intervalhint";
+    public static final String ATTRIBUTE_HIDDEN_INTERVAL = "hiddeninterval";
+    public static final String ATTRIBUTE_IDLE_TIMEOUT = "idletimeout";
+    public static final String ATTRIBUTE_PUSH_URL = "pushurl";
+    public static final String ATTRIBUTE_PUSH_CHANNEL = "pushchannel";
+    public static final String VARIABLE_POLL = "poll";
+    public static final String VARIABLE_IDLE = "idle";
+    public static final String VARIABLE_HIDDEN = "hidden";
+
+    public static final String PARAMETER_PUSH_CHANNEL = "channel";
+    public static final String PUSH_RESPONSE_CHANGED = "1";
+    public static final String PUSH_RESPONSE_TIMEOUT = "0";
+
     private static final int STOP_THRESHOLD = 0;
+    private static final int BACKOFF_FACTOR = 2;
+    private static final int DEFAULT_PUSH_RETRY_DELAY = 5000;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NOT_FOUND = 404;
 
     private ApplicationConnection client;
-    private final Poller poller;
     private boolean pollerSuspendedDueDetach;
 
+    private int pollingInterval = STOP_THRESHOLD;
+    private int maxPollingInterval = STOP_THRESHOLD;
+    private int currentInterval = STOP_THRESHOLD;
+    private int jitterPercentage = 0;
+    private int intervalHint = STOP_THRESHOLD;
+    private int hiddenInterval = -1;
+    private int idleTimeout = STOP_THRESHOLD;
+    private boolean reportedIdle = false;
+    private boolean reportedHidden = false;
+    private long nextPollTime = Long.MAX_VALUE;
+
+    private String pushUrl = null;
+    private Request pushRequest = null;
+    private final Timer pushRetryTimer = new Timer() {
+        @Override
+        public void run() {
+            longPoll();
+        }
+    };
+
     public VRefresher() {
         setElement(Document.get().createDivElement());
         if (BrowserInfo.get().isIE6()) {
             getElement().getStyle().setProperty("overflow", "hidden");
             getElement().getStyle().setProperty("height", "0");
         }
-        poller = new Poller();
     }
 
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+        this.client = client;
         if (client.updateComponent(this, uidl, true)) {
+            stopPolling();
+            stopPushing();
             return;
         }
 
-        poller.cancel();
-        this.client = client;
-        if (client.updateComponent(this, uidl, true)) {
+        final int oldPollingInterval = pollingInterval;
+        pollingInterval = uidl.getIntAttribute(ATTRIBUTE_POLLING_INTERVAL);
+        jitterPercentage = uidl.hasAttribute(ATTRIBUTE_JITTER) ? uidl
+                .getIntAttribute(ATTRIBUTE_JITTER) : 0;
+        intervalHint = uidl.hasAttribute(ATTRIBUTE_INTERVAL_HINT) ? uidl
+                .getIntAttribute(ATTRIBUTE_INTERVAL_HINT) : STOP_THRESHOLD;
+        hiddenInterval = uidl.hasAttribute(ATTRIBUTE_HIDDEN_INTERVAL) ? uidl
+                .getIntAttribute(ATTRIBUTE_HIDDEN_INTERVAL) : -1;
+        idleTimeout = uidl.hasAttribute(ATTRIBUTE_IDLE_TIMEOUT) ? uidl
+                .getIntAttribute(ATTRIBUTE_IDLE_TIMEOUT) : STOP_THRESHOLD;
+
+        if (uidl.hasAttribute(ATTRIBUTE_PUSH_URL)) {
+            final String newPushUrl = uidl.getStringAttribute(ATTRIBUTE_PUSH_URL)
+                    + "?" + PARAMETER_PUSH_CHANNEL + "="
+                    + URL.encodeComponent(uidl
+                            .getStringAttribute(ATTRIBUTE_PUSH_CHANNEL));
+            if (!newPushUrl.equals(pushUrl)) {
+                stopPushing();
+                pushUrl = newPushUrl;
+            }
+            stopPolling();
+            longPoll();
             return;
         }
+        stopPushing();
 
-        int pollingInterval = uidl.getIntAttribute("pollinginterval");
-        if (pollingInterval > STOP_THRESHOLD) {
-            poller.scheduleRepeating(pollingInterval);
+        final boolean adaptive = uidl.getBooleanAttribute(ATTRIBUTE_ADAPTIVE);
+        if (adaptive) {
+            maxPollingInterval = Math.max(pollingInterval, uidl
+                    .getIntAttribute(ATTRIBUTE_MAX_POLLING_INTERVAL));
+        } else {
+            maxPollingInterval = pollingInterval;
+        }
+
+        if (pollingInterval <= STOP_THRESHOLD) {
+            stopPolling();
+            return;
+        }
+
+        /*
+         * Snap back to the fastest interval if an adaptive poll found changes
+         * or the settings changed, but not if the server only sent a new hint.
+         */
+        if (!adaptive || uidl.getBooleanAttribute(ATTRIBUTE_CHANGES)
+                || pollingInterval != oldPollingInterval
+                || currentInterval <= STOP_THRESHOLD) {
+            currentInterval = pollingInterval;
         }
+        currentInterval = Math.max(currentInterval, intervalHint);
+
+        nextPollTime = System.currentTimeMillis() + jitter(currentInterval);
+        RefresherScheduler.get().register(this);
+        RefresherActivityMonitor.get().register(this);
     }
 
     @Override
     protected void onAttach() {
         super.onAttach();
         if (pollerSuspendedDueDetach) {
-            poller.run();
+            pollerSuspendedDueDetach = false;
+            if (client != null && pushUrl != null) {
+                longPoll();
+            } else if (client != null && pollingInterval > STOP_THRESHOLD) {
+                nextPollTime = System.currentTimeMillis();
+                RefresherScheduler.get().register(this);
+            }
         }
     }
 
     @Override
     protected void onDetach() {
         super.onDetach();
-        poller.cancel();
+        stopPolling();
+        cancelLongPoll();
         pollerSuspendedDueDetach = true;
     }
 
-    class Poller extends Timer {
-        @Override
-        public void run() {
-            client.sendPendingVariableChanges();
+    private void stopPolling() {
+        nextPollTime = Long.MAX_VALUE;
+        RefresherScheduler.get().unregister(this);
+        RefresherActivityMonitor.get().unregister(this);
+    }
+
+    /**
+     * Poll at once if polling was paused or slowed down because the page was
+     * hidden or the user was idle. Called by the
+     * {@link RefresherActivityMonitor} on user input and visibility changes.
+     */
+    void resume() {
+        if ((reportedIdle || reportedHidden) && client != null
+                && pollingInterval > STOP_THRESHOLD && isAttached()) {
+            nextPollTime = System.currentTimeMillis();
+            RefresherScheduler.get().register(this);
+        }
+    }
+
+    /**
+     * Hold a long-poll open against the push servlet. Each time the server
+     * releases it with changes, a poll fetches them and a new long-poll is
+     * opened.
+     */
+    private void longPoll() {
+        if (pushUrl == null || (pushRequest != null && pushRequest.isPending())) {
+            return;
+        }
+
+        final RequestBuilder builder = new RequestBuilder(RequestBuilder.POST,
+                pushUrl);
+        try {
+            pushRequest = builder.sendRequest("", new RequestCallback() {
+                public void onResponseReceived(Request request,
+                        Response response) {
+                    if (request != pushRequest) {
+                        return;
+                    }
+                    pushRequest = null;
+
+                    if (response.getStatusCode() == HTTP_NOT_FOUND) {
+                        // the channel is gone, such as after a server
+                        // restart, so retrying would never succeed.
+                        fallBackToPolling();
+                        return;
+                    } else if (response.getStatusCode() != HTTP_OK) {
+                        retryLongPoll();
+                        return;
+                    }
+
+                    if (PUSH_RESPONSE_CHANGED.equals(response.getText())) {
+                        client.updateVariable(client.getPid(VRefresher.this),
+                                VARIABLE_POLL, true, true);
+                    }
+                    longPoll();
+                }
+
+                public void onError(Request request, Throwable exception) {
+                    if (request == pushRequest) {
+                        pushRequest = null;
+                        retryLongPoll();
+                    }
+                }
+            });
+        } catch (RequestException e) {
+            retryLongPoll();
         }
     }
+
+    /**
+     * Poll at once, which makes the server open a new channel if the session
+     * still exists, and keep polling at the refresh interval until the new
+     * channel is painted.
+     */
+    private void fallBackToPolling() {
+        stopPushing();
+        client.updateVariable(client.getPid(this), VARIABLE_POLL, true, true);
+
+        if (pollingInterval > STOP_THRESHOLD) {
+            currentInterval = pollingInterval;
+            nextPollTime = System.currentTimeMillis() + jitter(currentInterval);
+            RefresherScheduler.get().register(this);
+            RefresherActivityMonitor.get().register(this);
+        }
+    }
+
+    private void retryLongPoll() {
+        pushRetryTimer.schedule(pollingInterval > STOP_THRESHOLD ? pollingInterval
+                : DEFAULT_PUSH_RETRY_DELAY);
+    }
+
+    private void cancelLongPoll() {
+        pushRetryTimer.cancel();
+        if (pushRequest != null) {
+            final Request request = pushRequest;
+            pushRequest = null;
+            request.cancel();
+        }
+    }
+
+    private void stopPushing() {
+        cancelLongPoll();
+        pushUrl = null;
+    }
+
+    /**
+     * Back off exponentially, up to the maximum interval. Any response
+     * containing changes will reset the interval through
+     * {@link #updateFromUIDL(UIDL, ApplicationConnection)}.
+     */
+    private void backOff() {
+        if (currentInterval < maxPollingInterval) {
+            currentInterval = Math.min(currentInterval * BACKOFF_FACTOR,
+                    maxPollingInterval);
+        }
+        currentInterval = Math.max(currentInterval, intervalHint);
+    }
+
+    /**
+     * Vary an interval randomly by the jitter percentage, so that clients
+     * given the same interval at the same time don't poll in lockstep.
+     */
+    private int jitter(int interval) {
+        if (jitterPercentage <= 0) {
+            return interval;
+        }
+        final double deviation = (Random.nextDouble() * 2 - 1)
+                * jitterPercentage / 100;
+        return Math.max(1, (int) (interval * (1 + deviation)));
+    }
+
+    /**
+     * Queue a poll to be sent with the next request, and determine the time of
+     * the following poll. Called by the {@link RefresherScheduler}, which
+     * sends the queued variables.
+     * <p>
+     * While the page is hidden, the interval is slowed down to the hidden
+     * interval, or polling is paused if the hidden interval is zero. Once the
+     * user has been idle for the idle timeout, polling is paused. Changes in
+     * these states are reported to the server.
+     * 
+     * @return <code>true</code> if any variables were queued.
+     */
+    boolean queuePoll(long now) {
+        final RefresherActivityMonitor monitor = RefresherActivityMonitor
+                .get();
+        final boolean idle = idleTimeout > STOP_THRESHOLD
+                && now - monitor.getLastActivityTime() >= idleTimeout;
+        final boolean hidden = hiddenInterval >= STOP_THRESHOLD
+                && monitor.isHidden();
+        final String pid = client.getPid(this);
+        boolean queued = false;
+
+        if (idle != reportedIdle) {
+            reportedIdle = idle;
+            client.updateVariable(pid, VARIABLE_IDLE, idle, false);
+            queued = true;
+        }
+        if (hidden != reportedHidden) {
+            reportedHidden = hidden;
+            client.updateVariable(pid, VARIABLE_HIDDEN, hidden, false);
+            queued = true;
+        }
+
+        if (idle || (hidden && hiddenInterval == STOP_THRESHOLD)) {
+            // paused until the activity monitor resumes us
+            nextPollTime = Long.MAX_VALUE;
+            return queued;
+        }
+
+        backOff();
+        final int interval = hidden ? Math.max(currentInterval,
+                hiddenInterval) : currentInterval;
+        nextPollTime = now + jitter(interval);
+        client.updateVariable(pid, VARIABLE_POLL, true, false);
+        return true;
+    }
+
+    /**
+     * @return The time of the next poll in milliseconds, or
+     *         {@link Long#MAX_VALUE} if the refresher isn't polling.
+     */
+    long getNextPollTime() {
+        return nextPollTime;
+    }
+
+    int getCurrentInterval() {
+        return currentInterval;
+    }
+
+    ApplicationConnection getClient() {
+        return client;
+    }
 }
@@ -0,0 +1,400 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.vaadin.data.Container;
+import com.vaadin.data.Property;
+
+/**
+ * Filters the items of a {@link Container} by the text typed in a
+ * {@link SuperImmediateTextField}, reusing earlier results.
+ * <p>
+ * The result for each text is cached. Since the items matching a text also
+ * match any of its prefixes, a text is filtered only from the result of its
+ * longest cached prefix: extending the text narrows the previous result, and
+ * backspacing returns a cached result at once. Large candidate sets can be
+ * split between the threads of an {@link Executor}: see
+ * {@link #setParallelExecutor(Executor)}.
+ * <p>
+ * The cache is bounded by the total number of item identifiers it holds, and
+ * the result for an empty text, which is every item, is never cached. The
+ * cache is cleared whenever the container reports changes to its items. The
+ * values of the filtered property are not watched, since that would take a
+ * listener per item: if they may change, call {@link #clearCache()}
+ * afterwards.
+ * <p>
+ * Add the filter to a field with
+ * {@link SuperImmediateTextField#addListener(SuperImmediateTextField.KeyPressListener)}
+ * and receive the results through a {@link FilterListener}.
+ * 
+ * @author Henrik Paul
+ */
+public class IncrementalContainerFilter implements
+        SuperImmediateTextField.KeyPressListener,
+        Container.ItemSetChangeListener {
+    private static final long serialVersionUID = -2919718733226339413L;
+
+    /**
+     * Receives the results of an {@link IncrementalContainerFilter}.
+     * 
+     * @author Henrik Paul
+     */
+    public interface FilterListener extends Serializable {
+        /**
+         * Receive the items matching the typed text.
+         * 
+         * @param text
+         *            The typed text.
+         * @param itemIds
+         *            The identifiers of the matching items, in container
+         *            order.
+         */
+        public void filtered(String text, List<Object> itemIds);
+    }
+
+    /** The default number of item identifiers kept in the cache. */
+    public static final int DEFAULT_CACHE_CAPACITY = 100000;
+
+    /** The default candidate count above which filtering is parallel. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 50000;
+
+    private final Container container;
+    private final Object propertyId;
+    private final Collection<FilterListener> listeners = new CopyOnWriteArrayList<FilterListener>();
+    private final Map<String, List<Object>> cache = new LinkedHashMap<String, List<Object>>(
+            16, 0.75f, true);
+    private final int cacheCapacity;
+    private int cachedIdCount = 0;
+
+    private boolean prefixMatching = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private transient Executor parallelExecutor = null;
+    private List<Object> result = null;
+
+    /**
+     * @param container
+     *            The container to filter.
+     * @param propertyId
+     *            The property whose value is matched against the text.
+     */
+    public IncrementalContainerFilter(Container container, Object propertyId) {
+        this(container, propertyId, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * @param container
+     *            The container to filter.
+     * @param propertyId
+     *            The property whose value is matched against the text.
+     * @param cacheCapacity
+     *            The total number of item identifiers kept in the cached
+     *            results.
+     */
+    public IncrementalContainerFilter(Container container, Object propertyId,
+            int cacheCapacity) {
+        this.container = container;
+        this.propertyId = propertyId;
+        this.cacheCapacity = cacheCapacity;
+
+        if (container instanceof Container.ItemSetChangeNotifier) {
+            ((Container.ItemSetChangeNotifier) container).addListener(this);
+        }
+    }
+
+    public void keyPressed(SuperImmediateTextField.KeyPressEvent event) {
+        final String text = event.getText() != null ? event.getText() : "";
+        result = filter(text);
+
+        for (final FilterListener listener : listeners) {
+            listener.filtered(text, result);
+        }
+    }
+
+    /**
+     * Get the items matching a text.
+     * 
+     * @param text
+     *            The text.
+     * @return The identifiers of the matching items, in container order.
+     */
+    public synchronized List<Object> filter(String text) {
+        final String key = normalize(text);
+        if (key.length() == 0) {
+            return Collections.unmodifiableList(new ArrayList<Object>(
+                    container.getItemIds()));
+        }
+
+        for (int length = key.length(); length > 0; length--) {
+            final List<Object> cached = cache.get(key.substring(0, length));
+            if (cached != null) {
+                if (length == key.length()) {
+                    return cached;
+                }
+                return cacheResult(key, narrow(cached, key));
+            }
+        }
+
+        return cacheResult(key, narrow(new ArrayList<Object>(container
+                .getItemIds()), key));
+    }
+
+    /**
+     * Cache a result, evicting the least recently used ones until the cache
+     * is within its capacity. A result larger than the capacity isn't cached.
+     */
+    private List<Object> cacheResult(String key, List<Object> itemIds) {
+        final List<Object> unmodifiable = Collections
+                .unmodifiableList(itemIds);
+        if (itemIds.size() > cacheCapacity) {
+            return unmodifiable;
+        }
+
+        cache.put(key, unmodifiable);
+        cachedIdCount += itemIds.size();
+
+        final Iterator<List<Object>> eldest = cache.values().iterator();
+        while (cachedIdCount > cacheCapacity) {
+            cachedIdCount -= eldest.next().size();
+            eldest.remove();
+        }
+        return unmodifiable;
+    }
+
+    /**
+     * Discard the cached results. Call this after the values of the filtered
+     * property have changed.
+     */
+    public synchronized void clearCache() {
+        cache.clear();
+        cachedIdCount = 0;
+    }
+
+    private List<Object> narrow(List<Object> candidates, String key) {
+        final Executor executor = parallelExecutor;
+        if (executor == null || candidates.size() < parallelThreshold) {
+            return narrow(candidates, key, 0, candidates.size());
+        } else {
+            return narrowInParallel(candidates, key, executor);
+        }
+    }
+
+    private List<Object> narrow(List<Object> candidates, String key,
+            int from, int to) {
+        final List<Object> matches = new ArrayList<Object>();
+        for (int i = from; i < to; i++) {
+            final Object itemId = candidates.get(i);
+            if (matches(itemId, key)) {
+                matches.add(itemId);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * A part of the candidates, filtered by whichever thread claims it first.
+     * 
+     * @author Henrik Paul
+     */
+    private class Chunk implements Runnable {
+        private final List<Object> candidates;
+        private final String key;
+        private final int from;
+        private final int to;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile List<Object> matches = null;
+        private volatile RuntimeException failure = null;
+
+        Chunk(List<Object> candidates, String key, int from, int to) {
+            this.candidates = candidates;
+            this.key = key;
+            this.from = from;
+            this.to = to;
+        }
+
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                matches = narrow(candidates, key, from, to);
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        List<Object> getMatches() throws InterruptedException {
+            done.await();
+            if (failure != null) {
+                throw failure;
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Split the candidates into one chunk per thread, and concatenate the
+     * matches of each chunk in order.
+     * <p>
+     * The calling thread filters the first chunk, and then any chunk that no
+     * executor thread has started yet. It thus waits only for chunks that are
+     * already running, so this doesn't deadlock even when called from a
+     * thread of the same executor, such as by an
+     * {@link SuperImmediateTextField.AsyncKeyPressListener}.
+     */
+    private List<Object> narrowInParallel(final List<Object> candidates,
+            final String key, Executor executor) {
+        final int chunkCount = Runtime.getRuntime().availableProcessors();
+        final int chunkSize = (candidates.size() + chunkCount - 1)
+                / chunkCount;
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+
+        for (int from = 0; from < candidates.size(); from += chunkSize) {
+            final Chunk chunk = new Chunk(candidates, key, from, Math.min(
+                    from + chunkSize, candidates.size()));
+            if (!chunks.isEmpty()) {
+                try {
+                    executor.execute(chunk);
+                } catch (RejectedExecutionException e) {
+                    // the executor is shut down; the chunk is filtered here.
+                }
+            }
+            chunks.add(chunk);
+        }
+
+        for (final Chunk chunk : chunks) {
+            chunk.run();
+        }
+
+        final List<Object> matches = new ArrayList<Object>();
+        try {
+            for (final Chunk chunk : chunks) {
+                matches.addAll(chunk.getMatches());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Filtering was interrupted", e);
+        }
+        return matches;
+    }
+
+    private boolean matches(Object itemId, String key) {
+        final Property property = container.getContainerProperty(itemId,
+                propertyId);
+        if (property == null || property.getValue() == null) {
+            return false;
+        }
+
+        final String value = normalize(property.toString());
+        return prefixMatching ? value.startsWith(key) : value.contains(key);
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ENGLISH);
+    }
+
+    public void containerItemSetChange(Container.ItemSetChangeEvent event) {
+        clearCache();
+    }
+
+    /**
+     * @return The items matching the text of the latest key press, or
+     *         <code>null</code> if there has been none.
+     */
+    public List<Object> getResult() {
+        return result;
+    }
+
+    /**
+     * Define whether the text must match the start of the value, instead of
+     * any part of it.
+     * 
+     * @param prefixMatching
+     *            <code>true</code> to match only the start.
+     */
+    public synchronized void setPrefixMatching(boolean prefixMatching) {
+        if (this.prefixMatching != prefixMatching) {
+            this.prefixMatching = prefixMatching;
+            clearCache();
+        }
+    }
+
+    public boolean isPrefixMatching() {
+        return prefixMatching;
+    }
+
+    /**
+     * Set the executor whose threads share the filtering of large candidate
+     * sets. The container must then allow its properties to be read from
+     * several threads at once. The executor isn't serialized with the filter.
+     * 
+     * @param executor
+     *            The executor, or <code>null</code> to filter only in the
+     *            calling thread, which is the default.
+     * @see #setParallelThreshold(int)
+     */
+    public void setParallelExecutor(Executor executor) {
+        parallelExecutor = executor;
+    }
+
+    public Executor getParallelExecutor() {
+        return parallelExecutor;
+    }
+
+    /**
+     * Set the number of candidates above which filtering is split between
+     * the threads of the {@link #setParallelExecutor(Executor) executor}.
+     * 
+     * @param threshold
+     *            The number of candidates. {@link Integer#MAX_VALUE} never
+     *            filters in parallel.
+     */
+    public void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void addListener(FilterListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(FilterListener listener) {
+        listeners.remove(listener);
+    }
+}
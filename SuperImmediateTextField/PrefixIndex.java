@@ -0,0 +1,306 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable index of weighted terms, answering which terms with the
+ * greatest weight start with a given prefix.
+ * <p>
+ * The terms are kept in a sorted array, so the terms with a given prefix form
+ * one range, found with two binary searches. A segment tree over the weights
+ * gives the heaviest term of any range, from which the top terms are picked
+ * one range split at a time. A query thus takes
+ * <code>O(log n + k log k)</code> time regardless of how many terms share the
+ * prefix. Recent results are kept in a small LRU cache.
+ * <p>
+ * Prefixes are matched case-insensitively, by comparing the terms as given,
+ * so no normalized copy of the terms is kept. This class is thread-safe.
+ * <p>
+ * An index is meant to be shared by all fields using the same vocabulary.
+ * {@link SuggestingTextField} doesn't serialize its index.
+ * 
+ * @author Henrik Paul
+ * @see SuggestingTextField
+ */
+public class PrefixIndex implements Serializable {
+    private static final long serialVersionUID = -6105300219402429706L;
+
+    /** The default number of prefix results kept in the cache. */
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /** A range of term indices and the heaviest term within it. */
+    private static class Range {
+        final int from;
+        final int to;
+        final int heaviest;
+
+        Range(int from, int to, int heaviest) {
+            this.from = from;
+            this.to = to;
+            this.heaviest = heaviest;
+        }
+    }
+
+    /** The terms as given, in case-insensitive order. */
+    private final String[] terms;
+    private final int[] weights;
+    /** An iterative segment tree of the index of the heaviest term. */
+    private final int[] tree;
+
+    private final Map<String, List<String>> cache;
+
+    /**
+     * Index terms of equal weight.
+     * 
+     * @param terms
+     *            The terms.
+     */
+    public PrefixIndex(final String[] terms) {
+        this(terms, new int[terms.length], DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Index weighted terms.
+     * 
+     * @param terms
+     *            The terms.
+     * @param weights
+     *            The weight of each term. Heavier terms are suggested first.
+     * @param cacheSize
+     *            The number of prefix results to keep in the cache.
+     */
+    public PrefixIndex(final String[] terms, final int[] weights,
+            final int cacheSize) {
+        if (terms.length != weights.length) {
+            throw new IllegalArgumentException(
+                    "terms and weights differ in length");
+        }
+
+        final int n = terms.length;
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        sort(order, new int[n], 0, n, terms);
+
+        this.terms = new String[n];
+        this.weights = new int[n];
+        for (int i = 0; i < n; i++) {
+            this.terms[i] = terms[order[i]];
+            this.weights[i] = weights[order[i]];
+        }
+
+        tree = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            tree[n + i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            tree[i] = preferFirst(tree[2 * i], tree[2 * i + 1]);
+        }
+
+        cache = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, List<String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Merge sort term indices in case-insensitive order of their terms,
+     * keeping equal terms in their original order.
+     */
+    private static void sort(int[] order, int[] buffer, int from, int to,
+            String[] terms) {
+        if (to - from < 2) {
+            return;
+        }
+
+        final int middle = (from + to) >>> 1;
+        sort(order, buffer, from, middle, terms);
+        sort(order, buffer, middle, to, terms);
+
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to
+                    || (left < middle && String.CASE_INSENSITIVE_ORDER
+                            .compare(terms[buffer[left]],
+                                    terms[buffer[right]]) <= 0)) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * Compare the start of a term to a prefix, ignoring case in the same way
+     * as {@link String#CASE_INSENSITIVE_ORDER}.
+     * 
+     * @return Less than zero if the term sorts before all terms with the
+     *         prefix, zero if it has the prefix, and greater than zero if it
+     *         sorts after them.
+     */
+    private static int comparePrefix(String term, String prefix) {
+        final int length = Math.min(term.length(), prefix.length());
+        for (int i = 0; i < length; i++) {
+            final char a = fold(term.charAt(i));
+            final char b = fold(prefix.charAt(i));
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return term.length() < prefix.length() ? -1 : 0;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Get the heaviest terms starting with a prefix.
+     * 
+     * @param prefix
+     *            The prefix.
+     * @param count
+     *            The greatest number of terms to return.
+     * @return The terms, heaviest first. Terms of equal weight are in
+     *         alphabetical order.
+     */
+    public List<String> getSuggestions(final String prefix, final int count) {
+        final String key = count + ":" + prefix.toLowerCase();
+        synchronized (cache) {
+            final List<String> cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final List<String> suggestions = Collections
+                .unmodifiableList(findSuggestions(prefix, count));
+        synchronized (cache) {
+            cache.put(key, suggestions);
+        }
+        return suggestions;
+    }
+
+    private List<String> findSuggestions(final String prefix, final int count) {
+        final int from = bound(prefix, false);
+        final int to = bound(prefix, true);
+        final List<String> suggestions = new ArrayList<String>(Math.max(0,
+                Math.min(count, to - from)));
+        if (from >= to || count <= 0) {
+            return suggestions;
+        }
+
+        final PriorityQueue<Range> ranges = new PriorityQueue<Range>(count,
+                new Comparator<Range>() {
+                    public int compare(Range a, Range b) {
+                        if (weights[a.heaviest] != weights[b.heaviest]) {
+                            return weights[a.heaviest] > weights[b.heaviest] ? -1
+                                    : 1;
+                        }
+                        return a.heaviest - b.heaviest;
+                    }
+                });
+        ranges.add(new Range(from, to, heaviestIn(from, to)));
+
+        while (suggestions.size() < count && !ranges.isEmpty()) {
+            final Range range = ranges.poll();
+            suggestions.add(terms[range.heaviest]);
+
+            if (range.from < range.heaviest) {
+                ranges.add(new Range(range.from, range.heaviest, heaviestIn(
+                        range.from, range.heaviest)));
+            }
+            if (range.heaviest + 1 < range.to) {
+                ranges.add(new Range(range.heaviest + 1, range.to, heaviestIn(
+                        range.heaviest + 1, range.to)));
+            }
+        }
+
+        return suggestions;
+    }
+
+    /**
+     * @return The index of the first term with <code>prefix</code>, or if
+     *         <code>upper</code>, of the first term after them.
+     */
+    private int bound(final String prefix, final boolean upper) {
+        int low = 0;
+        int high = terms.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = comparePrefix(terms[middle], prefix);
+            if (comparison < 0 || (upper && comparison == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The index of the heaviest term in <code>[from, to)</code>,
+     *         preferring the first of equals.
+     */
+    private int heaviestIn(int from, int to) {
+        final int n = terms.length;
+        int heaviest = from;
+        for (from += n, to += n; from < to; from >>= 1, to >>= 1) {
+            if ((from & 1) == 1) {
+                heaviest = preferFirst(heaviest, tree[from++]);
+            }
+            if ((to & 1) == 1) {
+                heaviest = preferFirst(heaviest, tree[--to]);
+            }
+        }
+        return heaviest;
+    }
+
+    /**
+     * @return The heavier of two terms, or the first in order if equal.
+     */
+    private int preferFirst(int a, int b) {
+        if (weights[a] != weights[b]) {
+            return weights[a] > weights[b] ? a : b;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * @return The number of indexed terms.
+     */
+    public int size() {
+        return terms.length;
+    }
+}
@@ -0,0 +1,166 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.vaadin.data.Property;
+
+/**
+ * A {@link SuperImmediateTextField} that looks up suggestions for the typed
+ * text from a {@link PrefixIndex} on each super immediate event.
+ * <p>
+ * The suggestions are handed to {@link SuggestionListener
+ * SuggestionListeners}, which decide how to show them.
+ * 
+ * @author Henrik Paul
+ */
+public class SuggestingTextField extends SuperImmediateTextField {
+
+    /**
+     * Receives the suggestions for the text typed in a
+     * {@link SuggestingTextField}.
+     * 
+     * @author Henrik Paul
+     * @see SuggestingTextField#addListener(SuggestionListener)
+     */
+    public interface SuggestionListener extends Serializable {
+        /**
+         * Receive new suggestions.
+         * 
+         * @param source
+         *            The field typed upon.
+         * @param suggestions
+         *            The suggestions for the typed text, best first.
+         */
+        public void suggestionsChanged(SuggestingTextField source,
+                List<String> suggestions);
+    }
+
+    private static final long serialVersionUID = 2875914946104373357L;
+
+    /** The default number of suggestions looked up. */
+    public static final int DEFAULT_SUGGESTION_COUNT = 10;
+
+    private final Collection<SuggestionListener> suggestionListeners = new CopyOnWriteArrayList<SuggestionListener>();
+
+    /** Shared between fields, so it isn't serialized with each session. */
+    private transient PrefixIndex index = null;
+    private int suggestionCount = DEFAULT_SUGGESTION_COUNT;
+    private List<String> suggestions = Collections.emptyList();
+
+    /**
+     * @see SuperImmediateTextField#SuperImmediateTextField()
+     */
+    public SuggestingTextField() {
+        super();
+    }
+
+    /**
+     * @see SuperImmediateTextField#SuperImmediateTextField(String)
+     */
+    public SuggestingTextField(String caption) {
+        super(caption);
+    }
+
+    /**
+     * @see SuperImmediateTextField#SuperImmediateTextField(String, Property)
+     */
+    public SuggestingTextField(String caption, Property dataSource) {
+        super(caption, dataSource);
+    }
+
+    /**
+     * @param index
+     *            The index to look suggestions up from.
+     */
+    public SuggestingTextField(PrefixIndex index) {
+        super();
+        setIndex(index);
+    }
+
+    @Override
+    protected void fireKeyPressEvent() {
+        updateSuggestions();
+        super.fireKeyPressEvent();
+    }
+
+    private void updateSuggestions() {
+        final Object value = getValue();
+        final String text = value != null ? value.toString() : "";
+
+        if (index == null || text.length() == 0) {
+            suggestions = Collections.emptyList();
+        } else {
+            suggestions = index.getSuggestions(text, suggestionCount);
+        }
+
+        for (final SuggestionListener listener : suggestionListeners) {
+            listener.suggestionsChanged(this, suggestions);
+        }
+    }
+
+    /**
+     * @return The suggestions for the text of the latest key press.
+     */
+    public List<String> getSuggestions() {
+        return new ArrayList<String>(suggestions);
+    }
+
+    /**
+     * Set the index to look suggestions up from. The index isn't serialized
+     * with the field, so it needs to be set again after deserialization.
+     * 
+     * @param index
+     *            The index to look suggestions up from, or <code>null</code>
+     *            for no suggestions.
+     */
+    public void setIndex(final PrefixIndex index) {
+        this.index = index;
+    }
+
+    public PrefixIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @param count
+     *            The greatest number of suggestions to look up.
+     */
+    public void setSuggestionCount(final int count) {
+        suggestionCount = count;
+    }
+
+    public int getSuggestionCount() {
+        return suggestionCount;
+    }
+
+    public void addListener(SuggestionListener listener) {
+        if (listener != null) {
+            suggestionListeners.add(listener);
+        }
+    }
+
+    public void removeListener(SuggestionListener listener) {
+        suggestionListeners.remove(listener);
+    }
+}
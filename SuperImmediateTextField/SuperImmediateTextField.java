@@ -17,15 +17,22 @@
 package org.lightframe.components;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpSession;
 
 import org.lightframe.components.client.ui.VSuperImmediateTextField;
 
+import com.vaadin.Application;
 import com.vaadin.data.Property;
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.gwt.server.WebApplicationContext;
 import com.vaadin.ui.TextField;
 
 /**
@@ -68,21 +75,140 @@ public class SuperImmediateTextField extends TextField {
          * @return The {@link SuperImmediateTextField} that was typed upon.
          */
         public SuperImmediateTextField getSource();
+
+        /**
+         * Get the text of the field at the time of the key press.
+         * 
+         * @return The typed text.
+         */
+        public String getText();
+    }
+
+    /**
+     * A listener whose work is done in the background, so that it doesn't
+     * delay the response to the key press. Asynchronous listeners are run
+     * only if the field has been given a {@link Refresher} through
+     * {@link SuperImmediateTextField#setAsynchronousDispatch(Refresher)};
+     * otherwise both steps are run at once in the request thread.
+     * 
+     * @author Henrik Paul
+     * @param <T>
+     *            The type of the result computed in the background.
+     * @see SuperImmediateTextField#addListener(AsyncKeyPressListener)
+     */
+    public interface AsyncKeyPressListener<T> extends Serializable {
+        /**
+         * Do the work caused by a key press, in a background thread. The UI
+         * must not be modified here. If the user types on, the thread is
+         * interrupted and the result discarded.
+         * 
+         * @param event
+         *            The key press.
+         * @return The result to apply to the UI.
+         */
+        public T keyPressedInBackground(KeyPressEvent event);
+
+        /**
+         * Apply the result of the background work to the UI. Called on the
+         * next poll of the {@link Refresher}, while the application is locked,
+         * unless a newer key press has been made.
+         * 
+         * @param event
+         *            The key press.
+         * @param result
+         *            The result of
+         *            {@link #keyPressedInBackground(KeyPressEvent)}.
+         */
+        public void applyResult(KeyPressEvent event, T result);
+    }
+
+    /**
+     * A {@link KeyPressEvent} holding the text at the time of the key press.
+     */
+    private class TextKeyPressEvent implements KeyPressEvent {
+        private static final long serialVersionUID = 8106651917436542262L;
+        private final String text;
+
+        public TextKeyPressEvent(String text) {
+            this.text = text;
+        }
+
+        public SuperImmediateTextField getSource() {
+            return SuperImmediateTextField.this;
+        }
+
+        public String getText() {
+            return text;
+        }
     }
 
     private static final long serialVersionUID = -8423510242229989097L;
 
+    /** The session attribute holding the limiter shared by the fields. */
+    private static final String SESSION_RATE_LIMITER_ATTRIBUTE = SuperImmediateTextField.class
+            .getName()
+            + ".sessionRateLimiter";
+
+    /** The default lower bound of an adaptive delay, in milliseconds. */
+    public static final int DEFAULT_MIN_DELAY = 50;
+
+    /** The default upper bound of an adaptive delay, in milliseconds. */
+    public static final int DEFAULT_MAX_DELAY = 1000;
+
     private final KeyPressEvent keypressEvent = new KeyPressEvent() {
         private static final long serialVersionUID = 1L;
 
         public SuperImmediateTextField getSource() {
             return SuperImmediateTextField.this;
         }
+
+        public String getText() {
+            return SuperImmediateTextField.this.getText();
+        }
     };
 
-    private final Collection<KeyPressListener> listeners = new ArrayList<KeyPressListener>();
+    private final Collection<KeyPressListener> listeners = new CopyOnWriteArrayList<KeyPressListener>();
+    private final Collection<AsyncKeyPressListener<?>> asyncListeners = new CopyOnWriteArrayList<AsyncKeyPressListener<?>>();
+
+    private Refresher dispatchRefresher = null;
+    private final AtomicInteger dispatchGeneration = new AtomicInteger();
+    private transient Future<?> pendingDispatch = null;
 
     private int delayMillis = VSuperImmediateTextField.DEFAULT_DELAY;
+    private boolean leadingEdge = false;
+    private int maxWaitMillis = 0;
+    private int minGapMillis = 0;
+    private int acknowledgedSequence = 0;
+
+    private boolean sendOnlyChanges = false;
+    private int minimumLength = 0;
+    private String sendPattern = null;
+
+    private TokenBucket fieldRateLimiter = null;
+    private double sessionEventsPerSecond = 0;
+    private int sessionBurst = 0;
+    private TokenBucket localSessionRateLimiter = null;
+    private long rejectedKeyPressCount = 0;
+    private long collapsedKeyPressCount = 0;
+    private int keyPressesPendingCollapse = 0;
+    private long retryAfterMillis = 0;
+
+    private boolean adaptiveDelay = false;
+    private int minDelayMillis = DEFAULT_MIN_DELAY;
+    private int maxDelayMillis = DEFAULT_MAX_DELAY;
+
+    private boolean deltaTransfer = false;
+    /** The text the client is known to have sent as its latest. */
+    private String deltaBase = null;
+    private int sequence = 0;
+    private boolean resyncNeeded = false;
+
+    /*
+     * A light repaint sends the client only the acknowledgement and such,
+     * not the text. It's painted only if nothing asked for a full repaint.
+     */
+    private boolean fullRepaintPending;
+    private boolean lightRepaintPending;
 
     /**
      * @see TextField#TextField()
@@ -127,17 +253,226 @@ public class SuperImmediateTextField extends TextField {
     @Override
     @SuppressWarnings("unchecked")
     public void changeVariables(Object source, Map variables) {
+        if (variables.containsKey(VSuperImmediateTextField.PROPERTY_SEQUENCE)) {
+            final int receivedSequence = (Integer) variables
+                    .get(VSuperImmediateTextField.PROPERTY_SEQUENCE);
+
+            if (receivedSequence <= acknowledgedSequence) {
+                // A newer event has already been handled; ignore this one.
+                variables = withoutSuperImmediateEvent(variables);
+            } else {
+                acknowledgedSequence = receivedSequence;
+                // the client waits for the acknowledgement
+                requestLightRepaint();
+            }
+        }
+
         super.changeVariables(source, variables);
 
+        if (deltaTransfer
+                && variables
+                        .containsKey(VSuperImmediateTextField.PROPERTY_SEQUENCE)
+                && !applyDelta(variables)) {
+            // the keypress is for a text we don't know; wait for the resync.
+            return;
+        }
+
         if (variables.containsKey(VSuperImmediateTextField.PROPERTY_KEYPRESSED)) {
-            fireKeyPressEvent();
+            if (isKeyPressPermitted()) {
+                collapsedKeyPressCount += keyPressesPendingCollapse;
+                keyPressesPendingCollapse = 0;
+                fireKeyPressEvent();
+            } else {
+                rejectKeyPress();
+            }
+        }
+    }
+
+    /**
+     * Take a token from both limiters, or from neither: a key press turned
+     * down by the session limiter doesn't use up the field's budget.
+     */
+    private boolean isKeyPressPermitted() {
+        final TokenBucket sessionRateLimiter = getSessionRateLimiter();
+        if (fieldRateLimiter != null && !fieldRateLimiter.tryAcquire()) {
+            return false;
+        }
+        if (sessionRateLimiter != null && !sessionRateLimiter.tryAcquire()) {
+            if (fieldRateLimiter != null) {
+                fieldRateLimiter.release();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Turn down a key press. The value is still updated, but the listeners
+     * are informed only by the next permitted key press, which the client is
+     * told to send once tokens are available again.
+     */
+    private void rejectKeyPress() {
+        rejectedKeyPressCount++;
+        keyPressesPendingCollapse++;
+
+        final TokenBucket sessionRateLimiter = getSessionRateLimiter();
+        long wait = 0;
+        if (fieldRateLimiter != null) {
+            wait = fieldRateLimiter.getMillisUntilAvailable();
+        }
+        if (sessionRateLimiter != null) {
+            wait = Math.max(wait, sessionRateLimiter.getMillisUntilAvailable());
+        }
+        retryAfterMillis = Math.max(1, wait);
+        requestLightRepaint();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map withoutSuperImmediateEvent(Map variables) {
+        final Map remaining = new HashMap(variables);
+        remaining.remove(VSuperImmediateTextField.PROPERTY_KEYPRESSED);
+        remaining.remove(VSuperImmediateTextField.PROPERTY_SEQUENCE);
+        remaining.remove(VSuperImmediateTextField.PROPERTY_TEXT);
+        remaining.remove(VSuperImmediateTextField.PROPERTY_DELTA_OFFSET);
+        remaining.remove(VSuperImmediateTextField.PROPERTY_DELTA_REMOVED);
+        remaining.remove(VSuperImmediateTextField.PROPERTY_DELTA_INSERTED);
+        return remaining;
+    }
+
+    /**
+     * Rebuild the value from the edit sent by the client, or record the full
+     * text sent instead. If the edit doesn't follow the previous one, the
+     * client is asked to send its full text.
+     * 
+     * @return <code>true</code> if the value is now in sync with the client.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean applyDelta(Map variables) {
+        final int receivedSequence = (Integer) variables
+                .get(VSuperImmediateTextField.PROPERTY_SEQUENCE);
+
+        if (isReadOnly()) {
+            /*
+             * Like TextField, ignore the text of a read-only field. Dropping
+             * the base makes the next paint send our value as the new base.
+             */
+            deltaBase = null;
+            sequence = receivedSequence;
+            requestRepaint();
+            return false;
+        }
+
+        if (!variables
+                .containsKey(VSuperImmediateTextField.PROPERTY_DELTA_OFFSET)) {
+            // The full text was sent, and was already set by our superclass.
+            deltaBase = getText();
+            sequence = receivedSequence;
+            return true;
+        }
+
+        final int offset = (Integer) variables
+                .get(VSuperImmediateTextField.PROPERTY_DELTA_OFFSET);
+        final int removed = (Integer) variables
+                .get(VSuperImmediateTextField.PROPERTY_DELTA_REMOVED);
+        final String inserted = (String) variables
+                .get(VSuperImmediateTextField.PROPERTY_DELTA_INSERTED);
+
+        if (receivedSequence != sequence + 1 || deltaBase == null
+                || offset < 0 || removed < 0
+                || offset + removed > deltaBase.length() || inserted == null) {
+            resyncNeeded = true;
+            requestLightRepaint();
+            return false;
         }
+
+        deltaBase = deltaBase.substring(0, offset) + inserted
+                + deltaBase.substring(offset + removed);
+        sequence = receivedSequence;
+        setValue(deltaBase, true);
+        return true;
+    }
+
+    @Override
+    public void requestRepaint() {
+        fullRepaintPending = true;
+        super.requestRepaint();
+    }
+
+    /**
+     * Repaint only the state of the super immediate events, leaving alone
+     * the text the user may still be typing.
+     */
+    private void requestLightRepaint() {
+        lightRepaintPending = true;
+        super.requestRepaint();
+    }
+
+    private String getText() {
+        final Object value = getValue();
+        return value != null ? value.toString() : getNullRepresentation();
     }
 
     protected void fireKeyPressEvent() {
         for (KeyPressListener listener : listeners) {
             listener.keyPressed(keypressEvent);
         }
+
+        if (!asyncListeners.isEmpty()) {
+            dispatchAsynchronously(new TextKeyPressEvent(getText()));
+        }
+    }
+
+    /**
+     * Run the asynchronous listeners in the background, superseding any
+     * dispatch still running for an earlier key press.
+     */
+    private void dispatchAsynchronously(final KeyPressEvent event) {
+        final int generation = dispatchGeneration.incrementAndGet();
+        final Refresher refresher = dispatchRefresher;
+
+        if (refresher == null || refresher.getApplication() == null) {
+            for (final AsyncKeyPressListener<?> listener : asyncListeners) {
+                dispatch(listener, event, generation, null);
+            }
+            return;
+        }
+
+        if (pendingDispatch != null) {
+            pendingDispatch.cancel(true);
+        }
+        pendingDispatch = refresher.execute(new Runnable() {
+            public void run() {
+                for (final AsyncKeyPressListener<?> listener : asyncListeners) {
+                    if (generation != dispatchGeneration.get()
+                            || Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    dispatch(listener, event, generation, refresher);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compute a listener's result, and apply it through the refresher, or at
+     * once if there's no refresher.
+     */
+    private <T> void dispatch(final AsyncKeyPressListener<T> listener,
+            final KeyPressEvent event, final int generation,
+            final Refresher refresher) {
+        final T result = listener.keyPressedInBackground(event);
+
+        if (refresher == null) {
+            listener.applyResult(event, result);
+        } else if (generation == dispatchGeneration.get()) {
+            refresher.invokeLater(listener, new Runnable() {
+                public void run() {
+                    if (generation == dispatchGeneration.get()) {
+                        listener.applyResult(event, result);
+                    }
+                }
+            });
+        }
     }
 
     public void addListener(KeyPressListener listener) {
@@ -150,6 +485,47 @@ public class SuperImmediateTextField extends TextField {
         listeners.remove(listener);
     }
 
+    /**
+     * Add a listener whose work is done in the background.
+     * 
+     * @param listener
+     *            The listener.
+     * @see #setAsynchronousDispatch(Refresher)
+     */
+    public void addListener(AsyncKeyPressListener<?> listener) {
+        if (listener != null) {
+            asyncListeners.add(listener);
+        }
+    }
+
+    public void removeListener(AsyncKeyPressListener<?> listener) {
+        asyncListeners.remove(listener);
+    }
+
+    /**
+     * Run the {@link AsyncKeyPressListener AsyncKeyPressListeners} in the
+     * background, as tasks of a {@link Refresher}, and apply their results on
+     * its next poll. A key press cancels the work still running for the
+     * previous one. {@link KeyPressListener KeyPressListeners} are always run
+     * in the request thread.
+     * 
+     * @param refresher
+     *            The refresher delivering the results, or <code>null</code> to
+     *            run the asynchronous listeners in the request thread.
+     */
+    public void setAsynchronousDispatch(final Refresher refresher) {
+        dispatchRefresher = refresher;
+    }
+
+    /**
+     * @return The refresher delivering the results of asynchronous listeners,
+     *         or <code>null</code> if they're run in the request thread.
+     * @see #setAsynchronousDispatch(Refresher)
+     */
+    public Refresher getAsynchronousDispatch() {
+        return dispatchRefresher;
+    }
+
     /**
      * Set the delay to wait until the super immediate event is sent from when
      * the user starts typing.
@@ -174,11 +550,426 @@ public class SuperImmediateTextField extends TextField {
         return delayMillis;
     }
 
+    /**
+     * Define whether the client sends an event only if the text has changed
+     * since the previous event. Keys such as arrows and modifiers never cause
+     * an event then.
+     * 
+     * @param sendOnlyChanges
+     *            <code>true</code> to send only changed texts.
+     */
+    public void setSendOnlyChanges(final boolean sendOnlyChanges) {
+        this.sendOnlyChanges = sendOnlyChanges;
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if only changed texts are sent.
+     * @see #setSendOnlyChanges(boolean)
+     */
+    public boolean isSendOnlyChanges() {
+        return sendOnlyChanges;
+    }
+
+    /**
+     * Set the shortest text for which the client sends an event.
+     * 
+     * @param length
+     *            The number of characters. Zero sends all texts.
+     */
+    public void setMinimumLength(final int length) {
+        minimumLength = length;
+        requestRepaint();
+    }
+
+    /**
+     * @return The shortest text for which an event is sent.
+     * @see #setMinimumLength(int)
+     */
+    public int getMinimumLength() {
+        return minimumLength;
+    }
+
+    /**
+     * Set a pattern the whole text must match for the client to send an event.
+     * The pattern is evaluated by the browser, so use only syntax that Java
+     * and JavaScript regular expressions share.
+     * 
+     * @param regex
+     *            The regular expression, or <code>null</code> to send all
+     *            texts.
+     */
+    public void setSendPattern(final String regex) {
+        sendPattern = regex;
+        requestRepaint();
+    }
+
+    /**
+     * @return The pattern the text must match to be sent, or
+     *         <code>null</code>.
+     * @see #setSendPattern(String)
+     */
+    public String getSendPattern() {
+        return sendPattern;
+    }
+
+    /**
+     * Limit the rate of key press events handled for this field. Key presses
+     * over the limit still update the value, but are collapsed into one
+     * {@link KeyPressEvent}, fired once the rate allows.
+     * 
+     * @param eventsPerSecond
+     *            The average number of events handled per second. Zero or
+     *            less removes the limit.
+     * @param burst
+     *            The number of events handled in a burst.
+     * @see #setSessionRateLimit(double, int)
+     */
+    public void setRateLimit(final double eventsPerSecond, final int burst) {
+        fieldRateLimiter = eventsPerSecond > 0 ? new TokenBucket(
+                eventsPerSecond, burst) : null;
+    }
+
+    /**
+     * @return The limiter of this field, or <code>null</code> if there's no
+     *         limit.
+     * @see #setRateLimit(double, int)
+     */
+    public TokenBucket getRateLimiter() {
+        return fieldRateLimiter;
+    }
+
+    /**
+     * Limit the rate of key press events handled for all fields of the HTTP
+     * session that are given this limit. The limiter is kept in the session,
+     * and created with the limit of the first field that needs it; setting
+     * the limit of an attached field replaces it. Both this and the limit of
+     * {@link #setRateLimit(double, int)} must permit an event for it to be
+     * handled.
+     * <p>
+     * Outside a servlet, where there is no HTTP session, the limit applies
+     * to this field alone.
+     * 
+     * @param eventsPerSecond
+     *            The average number of events handled per second. Zero or
+     *            less removes this field from the session limit.
+     * @param burst
+     *            The number of events handled in a burst.
+     */
+    public void setSessionRateLimit(final double eventsPerSecond,
+            final int burst) {
+        if (eventsPerSecond > 0 && burst < 1) {
+            throw new IllegalArgumentException("Invalid burst " + burst);
+        }
+        sessionEventsPerSecond = eventsPerSecond;
+        sessionBurst = burst;
+        localSessionRateLimiter = null;
+
+        if (eventsPerSecond > 0) {
+            final HttpSession session = getHttpSession();
+            if (session != null) {
+                session.setAttribute(SESSION_RATE_LIMITER_ATTRIBUTE,
+                        new TokenBucket(eventsPerSecond, burst));
+            }
+        }
+    }
+
+    /**
+     * Get the limiter shared by the fields of this field's session.
+     * 
+     * @return The limiter, or <code>null</code> if this field has no session
+     *         limit.
+     * @see #setSessionRateLimit(double, int)
+     */
+    public TokenBucket getSessionRateLimiter() {
+        if (sessionEventsPerSecond <= 0) {
+            return null;
+        }
+
+        final HttpSession session = getHttpSession();
+        if (session == null) {
+            if (localSessionRateLimiter == null) {
+                localSessionRateLimiter = new TokenBucket(
+                        sessionEventsPerSecond, sessionBurst);
+            }
+            return localSessionRateLimiter;
+        }
+
+        synchronized (session) {
+            TokenBucket limiter = (TokenBucket) session
+                    .getAttribute(SESSION_RATE_LIMITER_ATTRIBUTE);
+            if (limiter == null) {
+                limiter = new TokenBucket(sessionEventsPerSecond, sessionBurst);
+                session.setAttribute(SESSION_RATE_LIMITER_ATTRIBUTE, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    private HttpSession getHttpSession() {
+        final Application application = getApplication();
+        if (application != null
+                && application.getContext() instanceof WebApplicationContext) {
+            return ((WebApplicationContext) application.getContext())
+                    .getHttpSession();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of key presses turned down by the rate limits.
+     */
+    public long getRejectedKeyPressCount() {
+        return rejectedKeyPressCount;
+    }
+
+    /**
+     * @return The number of turned down key presses that were later reported
+     *         to the listeners together with a permitted one.
+     */
+    public long getCollapsedKeyPressCount() {
+        return collapsedKeyPressCount;
+    }
+
+    /**
+     * Let the client tune the delay by itself. The client measures the round
+     * trip time of its events and the user's typing speed, and waits at least
+     * one round trip and somewhat longer than the typical gap between keys.
+     * The delay set with {@link #setDelay(int)} is used until the first
+     * measurements are made.
+     * 
+     * @param adaptiveDelay
+     *            <code>true</code> to tune the delay automatically.
+     * @see #setDelayBounds(int, int)
+     */
+    public void setAdaptiveDelay(final boolean adaptiveDelay) {
+        this.adaptiveDelay = adaptiveDelay;
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if the client tunes the delay by itself.
+     * @see #setAdaptiveDelay(boolean)
+     */
+    public boolean isAdaptiveDelay() {
+        return adaptiveDelay;
+    }
+
+    /**
+     * Set the bounds within which an adaptive delay is tuned.
+     * 
+     * @param minDelayInMillis
+     *            The shortest delay, in milliseconds.
+     * @param maxDelayInMillis
+     *            The longest delay, in milliseconds.
+     * @see #setAdaptiveDelay(boolean)
+     */
+    public void setDelayBounds(final int minDelayInMillis,
+            final int maxDelayInMillis) {
+        if (minDelayInMillis < 0 || maxDelayInMillis < minDelayInMillis) {
+            throw new IllegalArgumentException("Invalid bounds: "
+                    + minDelayInMillis + ".." + maxDelayInMillis);
+        }
+        minDelayMillis = minDelayInMillis;
+        maxDelayMillis = maxDelayInMillis;
+        requestRepaint();
+    }
+
+    /**
+     * @return The shortest adaptive delay, in milliseconds.
+     * @see #setDelayBounds(int, int)
+     */
+    public int getMinDelay() {
+        return minDelayMillis;
+    }
+
+    /**
+     * @return The longest adaptive delay, in milliseconds.
+     * @see #setDelayBounds(int, int)
+     */
+    public int getMaxDelay() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Define whether the first key pressed after a pause in typing is sent at
+     * once, instead of after the delay.
+     * 
+     * @param leadingEdge
+     *            <code>true</code> to send the first key at once.
+     * @see #setDelay(int)
+     */
+    public void setLeadingEdge(final boolean leadingEdge) {
+        this.leadingEdge = leadingEdge;
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if the first key after a pause is sent at
+     *         once.
+     * @see #setLeadingEdge(boolean)
+     */
+    public boolean isLeadingEdge() {
+        return leadingEdge;
+    }
+
+    /**
+     * Set the longest time a key press may wait to be sent while the user
+     * keeps typing. Without this, a fast typist sends no events until pausing
+     * for the delay.
+     * 
+     * @param maxWaitInMillis
+     *            The time in milliseconds. Zero or less waits for a pause.
+     * @see #setDelay(int)
+     */
+    public void setMaxWait(final int maxWaitInMillis) {
+        maxWaitMillis = maxWaitInMillis;
+        requestRepaint();
+    }
+
+    /**
+     * @return The longest time a key press may wait to be sent, in
+     *         milliseconds.
+     * @see #setMaxWait(int)
+     */
+    public int getMaxWait() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Set the shortest time between two super immediate events. Key presses
+     * within the gap are sent together when it has passed. This also limits
+     * the events sent with a delay of zero.
+     * 
+     * @param minGapInMillis
+     *            The time in milliseconds. Zero or less sets no limit.
+     */
+    public void setMinimumGap(final int minGapInMillis) {
+        minGapMillis = minGapInMillis;
+        requestRepaint();
+    }
+
+    /**
+     * @return The shortest time between two events, in milliseconds.
+     * @see #setMinimumGap(int)
+     */
+    public int getMinimumGap() {
+        return minGapMillis;
+    }
+
+    /**
+     * Send only the edit made since the previous event, instead of the full
+     * text. This keeps the requests small for long texts.
+     * <p>
+     * Each event carries a sequence number. If an edit can't be applied to the
+     * text the server has, such as after an event was lost, the client is
+     * asked to send its full text once.
+     * 
+     * @param deltaTransfer
+     *            <code>true</code> to send edits instead of the full text.
+     */
+    public void setDeltaTransfer(final boolean deltaTransfer) {
+        this.deltaTransfer = deltaTransfer;
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if only the edits are sent.
+     * @see #setDeltaTransfer(boolean)
+     */
+    public boolean isDeltaTransfer() {
+        return deltaTransfer;
+    }
+
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
+        final boolean light = lightRepaintPending && !fullRepaintPending;
+        lightRepaintPending = false;
+        fullRepaintPending = false;
+
+        if (light) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_LIGHT, true);
+            paintSendState(target);
+            return;
+        }
+
         super.paintContent(target);
 
         target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_DELAY,
                 delayMillis);
+        if (leadingEdge) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_LEADING,
+                    true);
+        }
+        if (maxWaitMillis > 0) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_MAX_WAIT,
+                    maxWaitMillis);
+        }
+        if (minGapMillis > 0) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_MIN_GAP,
+                    minGapMillis);
+        }
+        if (sendOnlyChanges) {
+            target.addAttribute(
+                    VSuperImmediateTextField.ATTRIBUTE_ONLY_CHANGES, true);
+        }
+        if (minimumLength > 0) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_MIN_LENGTH,
+                    minimumLength);
+        }
+        if (sendPattern != null) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_PATTERN,
+                    sendPattern);
+        }
+        if (adaptiveDelay) {
+            target.addAttribute(
+                    VSuperImmediateTextField.ATTRIBUTE_ADAPTIVE_DELAY, true);
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_MIN_DELAY,
+                    minDelayMillis);
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_MAX_DELAY,
+                    maxDelayMillis);
+        }
+
+        if (deltaTransfer) {
+            /*
+             * The client takes the painted text as the base of its next edit.
+             * If the value was changed here, the sequence number is moved
+             * past any edit the client may have sent against its old text.
+             */
+            final String text = getText();
+            if (!text.equals(deltaBase)) {
+                deltaBase = text;
+                sequence++;
+            }
+
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_DELTA, true);
+        }
+
+        paintSendState(target);
+    }
+
+    /**
+     * Paint the acknowledgement, and the requests the client must act on
+     * before sending its next event.
+     */
+    private void paintSendState(PaintTarget target) throws PaintException {
+        target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_ACKNOWLEDGED,
+                acknowledgedSequence);
+        if (retryAfterMillis > 0) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_RETRY_AFTER,
+                    retryAfterMillis);
+            retryAfterMillis = 0;
+        }
+
+        if (deltaTransfer) {
+            target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_SEQUENCE,
+                    sequence);
+            if (resyncNeeded) {
+                target.addAttribute(VSuperImmediateTextField.ATTRIBUTE_RESYNC,
+                        true);
+                resyncNeeded = false;
+            }
+        }
     }
 }
@@ -0,0 +1,116 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.Serializable;
+
+/**
+ * A token bucket rate limiter.
+ * <p>
+ * The bucket holds up to its capacity of tokens, and is refilled at a fixed
+ * rate. Each permitted event takes one token; events finding the bucket empty
+ * are rejected. This allows short bursts while limiting the average rate. This
+ * class is thread-safe.
+ * 
+ * @author Henrik Paul
+ * @see SuperImmediateTextField#setRateLimit(double, int)
+ * @see SuperImmediateTextField#setSessionRateLimit(double, int)
+ */
+public class TokenBucket implements Serializable {
+    private static final long serialVersionUID = 3530453932127004016L;
+
+    private final double tokensPerMilli;
+    private final int capacity;
+
+    private double tokens;
+    private long lastRefillTime;
+    private long permittedCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * @param tokensPerSecond
+     *            The average number of events permitted per second.
+     * @param capacity
+     *            The number of events permitted in a burst.
+     */
+    public TokenBucket(double tokensPerSecond, int capacity) {
+        if (tokensPerSecond <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("Invalid rate " + tokensPerSecond
+                    + " or capacity " + capacity);
+        }
+        tokensPerMilli = tokensPerSecond / 1000;
+        this.capacity = capacity;
+        tokens = capacity;
+        lastRefillTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Take a token, if one is available.
+     * 
+     * @return <code>true</code> if the event is permitted.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            permittedCount++;
+            return true;
+        } else {
+            rejectedCount++;
+            return false;
+        }
+    }
+
+    /**
+     * Return a token taken by {@link #tryAcquire()}, when the event was
+     * rejected by another limiter after all.
+     */
+    public synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1);
+        permittedCount--;
+    }
+
+    /**
+     * @return The time until the next token is available, in milliseconds.
+     */
+    public synchronized long getMillisUntilAvailable() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens)
+                / tokensPerMilli);
+    }
+
+    private void refill() {
+        final long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - lastRefillTime)
+                * tokensPerMilli);
+        lastRefillTime = now;
+    }
+
+    /**
+     * @return The number of events permitted so far.
+     */
+    public synchronized long getPermittedCount() {
+        return permittedCount;
+    }
+
+    /**
+     * @return The number of events rejected so far.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+}
@@ -35,11 +35,119 @@ public class VSuperImmediateTextField extends VTextField implements
     public static final String CLASSNAME = "v-" + TAGNAME;
 
     public static final String PROPERTY_KEYPRESSED = "keypressed";
+    public static final String PROPERTY_TEXT = "text";
+    public static final String PROPERTY_SEQUENCE = "seq";
+    public static final String PROPERTY_DELTA_OFFSET = "deltaoffset";
+    public static final String PROPERTY_DELTA_REMOVED = "deltaremoved";
+    public static final String PROPERTY_DELTA_INSERTED = "deltainserted";
     public static final String ATTRIBUTE_DELAY = "delay";
+    public static final String ATTRIBUTE_DELTA = "delta";
+    public static final String ATTRIBUTE_SEQUENCE = "seq";
+    public static final String ATTRIBUTE_RESYNC = "resync";
+    public static final String ATTRIBUTE_LEADING = "leading";
+    public static final String ATTRIBUTE_MAX_WAIT = "maxwait";
+    public static final String ATTRIBUTE_MIN_GAP = "mingap";
+    public static final String ATTRIBUTE_ACKNOWLEDGED = "ack";
+    public static final String ATTRIBUTE_ADAPTIVE_DELAY = "adaptivedelay";
+    public static final String ATTRIBUTE_MIN_DELAY = "mindelay";
+    public static final String ATTRIBUTE_MAX_DELAY = "maxdelay";
+    public static final String ATTRIBUTE_RETRY_AFTER = "retryafter";
+    public static final String ATTRIBUTE_ONLY_CHANGES = "onlychanges";
+    public static final String ATTRIBUTE_MIN_LENGTH = "minlength";
+    public static final String ATTRIBUTE_PATTERN = "pattern";
+    public static final String ATTRIBUTE_LIGHT = "light";
     public static final int DEFAULT_DELAY = 300;
 
+    /** How long to wait for an acknowledgement before sending anyway. */
+    private static final int IN_FLIGHT_TIMEOUT = 5000;
+
+    /** The weight of the newest sample in the moving averages. */
+    private static final double SAMPLE_WEIGHT = 0.25;
+
+    /** How much longer than the typical gap between keys to wait. */
+    private static final double CADENCE_FACTOR = 1.5;
+
     private int delayMillis = DEFAULT_DELAY;
-    private Timer timer = null;
+    private boolean leadingEdge = false;
+    private int maxWaitMillis = 0;
+    private int minGapMillis = 0;
+
+    private boolean adaptiveDelay = false;
+    private int minDelayMillis = 0;
+    private int maxDelayMillis = 0;
+    private double roundTripEstimate = -1;
+    private double cadenceEstimate = -1;
+    private long lastKeyTime = 0;
+    private long inFlightSentTime = 0;
+
+    /** Fires once the user has paused typing for the delay. */
+    private final Timer trailingTimer = new Timer() {
+        @Override
+        public void run() {
+            quiet = true;
+            if (unsentSince >= 0) {
+                requestSend();
+            }
+        }
+    };
+
+    /** Fires once the minimum gap since the previous event has passed. */
+    private final Timer gapTimer = new Timer() {
+        @Override
+        public void run() {
+            if (unsentSince >= 0) {
+                send();
+            }
+        }
+    };
+
+    /** Gives up on an acknowledgement that never arrives. */
+    private final Timer inFlightTimer = new Timer() {
+        @Override
+        public void run() {
+            requestCompleted();
+        }
+    };
+
+    /** Resends the text after the server has turned down an event. */
+    private final Timer retryTimer = new Timer() {
+        @Override
+        public void run() {
+            if (unsentSince < 0) {
+                unsentSince = System.currentTimeMillis();
+            }
+            retrying = true;
+            requestSend();
+        }
+    };
+
+    private boolean onlyChanges = false;
+    private int minLength = 0;
+    private String pattern = null;
+    private String lastKeyText = null;
+    private String lastSentText = null;
+    private String lastServerText = null;
+    private boolean retrying = false;
+
+    private boolean quiet = true;
+    private long unsentSince = -1;
+    private long lastSentTime = 0;
+    private int inFlightSequence = -1;
+    private boolean followUpPending = false;
+
+    private boolean deltaMode = false;
+    /** The text the server is known to have, or null to send the full text. */
+    private String deltaBase = null;
+    private int sequence = 0;
+
+    /**
+     * The sequence number of our latest event. Unlike {@link #sequence}, this
+     * isn't moved by the server changing the value.
+     */
+    private int lastSentSequence = 0;
+
+    /** Set while painting, if the painted text is older than the typed. */
+    private boolean keepTypedText = false;
 
     public VSuperImmediateTextField() {
         this(DOM.createInputText());
@@ -52,25 +160,160 @@ public class VSuperImmediateTextField extends VTextField implements
         addKeyUpHandler(this);
     }
 
+    /**
+     * An event is sent once the user pauses typing for the delay. In addition,
+     * the first key after a pause is sent at once if leading edge events are
+     * on, and pending keys are sent at least every max wait while typing. No
+     * two events are sent closer than the minimum gap.
+     */
     public void onKeyUp(KeyUpEvent event) {
-        if (delayMillis == 0) {
-            sendSuperImmediateEvent();
+        if (delayMillis < 0) {
+            return;
         }
 
-        else if (delayMillis > 0) {
-            if (timer == null) {
-                timer = newTimer();
-            } else {
-                timer.cancel();
-            }
+        // arrows, modifiers and such don't change the text
+        final String text = getText();
+        final boolean textChanged = !text.equals(lastKeyText);
+        lastKeyText = text;
+        if (onlyChanges && !textChanged) {
+            return;
+        }
 
-            timer.schedule(delayMillis);
+        final long now = System.currentTimeMillis();
+        measureCadence(now);
+        if (unsentSince < 0) {
+            unsentSince = now;
+        }
+
+        final int delay = getDelay();
+        if (delay == 0 || (leadingEdge && quiet)
+                || (maxWaitMillis > 0 && now - unsentSince >= maxWaitMillis)) {
+            requestSend();
+        }
+
+        quiet = false;
+        if (delay > 0) {
+            trailingTimer.cancel();
+            trailingTimer.schedule(delay);
+        }
+    }
+
+    /**
+     * Get the debounce delay. An adaptive delay waits for at least one round
+     * trip, so that events don't stack up on a slow connection, and a bit
+     * longer than the user's typical gap between keys, so that a burst of
+     * typing is sent as one event.
+     */
+    private int getDelay() {
+        if (!adaptiveDelay) {
+            return delayMillis;
+        }
+
+        final double roundTrip = roundTripEstimate >= 0 ? roundTripEstimate
+                : delayMillis;
+        final double cadence = cadenceEstimate >= 0 ? cadenceEstimate
+                * CADENCE_FACTOR : 0;
+        final int delay = (int) Math.max(roundTrip, cadence);
+        return Math.min(Math.max(delay, minDelayMillis), maxDelayMillis);
+    }
+
+    private void measureCadence(long now) {
+        final long sinceLastKey = now - lastKeyTime;
+        lastKeyTime = now;
+
+        // a pause in typing is not part of the cadence
+        if (adaptiveDelay && sinceLastKey <= maxDelayMillis) {
+            cadenceEstimate = average(cadenceEstimate, sinceLastKey);
+        }
+    }
+
+    private static double average(double average, double sample) {
+        return average < 0 ? sample : average + SAMPLE_WEIGHT
+                * (sample - average);
+    }
+
+    private void requestSend() {
+        final long sinceLastSent = System.currentTimeMillis() - lastSentTime;
+        if (sinceLastSent >= minGapMillis) {
+            send();
+        } else {
+            gapTimer.cancel();
+            gapTimer.schedule((int) (minGapMillis - sinceLastSent));
+        }
+    }
+
+    /**
+     * Send an event, unless one is still waiting for its acknowledgement. In
+     * that case, all keys pressed meanwhile are sent as one follow-up event
+     * once the acknowledgement arrives.
+     */
+    private void send() {
+        gapTimer.cancel();
+        if (inFlightSequence >= 0) {
+            followUpPending = true;
+            return;
+        }
+
+        followUpPending = false;
+        unsentSince = -1;
+
+        final String text = getText();
+        if (!retrying && !isWorthSending(text)) {
+            return;
+        }
+
+        retrying = false;
+        retryTimer.cancel();
+        lastSentText = text;
+        lastSentTime = System.currentTimeMillis();
+        sendSuperImmediateEvent();
+
+        inFlightSequence = sequence;
+        inFlightSentTime = lastSentTime;
+        inFlightTimer.schedule(IN_FLIGHT_TIMEOUT);
+    }
+
+    /**
+     * Check the text against the conditions set by the server, to skip
+     * requests that would be of no use.
+     */
+    private boolean isWorthSending(String text) {
+        if (onlyChanges && text.equals(lastSentText)) {
+            return false;
+        } else if (text.length() < minLength) {
+            return false;
+        } else if (pattern != null && !text.matches(pattern)) {
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private void requestCompleted() {
+        inFlightTimer.cancel();
+        inFlightSequence = -1;
+        if (followUpPending) {
+            send();
         }
     }
 
     @Override
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
-        super.updateFromUIDL(uidl, client);
+        if (uidl.getBooleanAttribute(ATTRIBUTE_LIGHT)) {
+            // only the state of our events was painted, not the text.
+            updateSendState(uidl);
+            if (deltaMode && uidl.getBooleanAttribute(ATTRIBUTE_RESYNC)) {
+                updateDeltaBase(uidl);
+            }
+            return;
+        }
+
+        keepTypedText = isTypingUnacknowledged(uidl);
+        try {
+            super.updateFromUIDL(uidl, client);
+        } finally {
+            keepTypedText = false;
+        }
 
         if (client.updateComponent(this, uidl, true)) {
             return;
@@ -79,21 +322,155 @@ public class VSuperImmediateTextField extends VTextField implements
         if (uidl.hasAttribute(ATTRIBUTE_DELAY)) {
             delayMillis = uidl.getIntAttribute(ATTRIBUTE_DELAY);
         }
+        leadingEdge = uidl.getBooleanAttribute(ATTRIBUTE_LEADING);
+        maxWaitMillis = uidl.hasAttribute(ATTRIBUTE_MAX_WAIT) ? uidl
+                .getIntAttribute(ATTRIBUTE_MAX_WAIT) : 0;
+        minGapMillis = uidl.hasAttribute(ATTRIBUTE_MIN_GAP) ? uidl
+                .getIntAttribute(ATTRIBUTE_MIN_GAP) : 0;
+        onlyChanges = uidl.getBooleanAttribute(ATTRIBUTE_ONLY_CHANGES);
+        minLength = uidl.hasAttribute(ATTRIBUTE_MIN_LENGTH) ? uidl
+                .getIntAttribute(ATTRIBUTE_MIN_LENGTH) : 0;
+        pattern = uidl.hasAttribute(ATTRIBUTE_PATTERN) ? uidl
+                .getStringAttribute(ATTRIBUTE_PATTERN) : null;
+
+        // Once the server changes the value, what we sent before no longer
+        // tells what the server has.
+        final String serverText = uidl.getStringVariable(PROPERTY_TEXT);
+        if (serverText != null && !serverText.equals(lastServerText)
+                && !isTypingUnacknowledged(uidl)) {
+            lastServerText = serverText;
+            lastSentText = serverText;
+            lastKeyText = serverText;
+        }
+
+        adaptiveDelay = uidl.getBooleanAttribute(ATTRIBUTE_ADAPTIVE_DELAY);
+        if (adaptiveDelay) {
+            minDelayMillis = uidl.getIntAttribute(ATTRIBUTE_MIN_DELAY);
+            maxDelayMillis = uidl.getIntAttribute(ATTRIBUTE_MAX_DELAY);
+        }
+
+        updateSendState(uidl);
+
+        deltaMode = uidl.getBooleanAttribute(ATTRIBUTE_DELTA);
+        if (deltaMode) {
+            updateDeltaBase(uidl);
+        } else {
+            deltaBase = null;
+        }
     }
 
-    private Timer newTimer() {
-        return new Timer() {
-            public void run() {
-                sendSuperImmediateEvent();
-                timer = null;
-            }
-        };
+    /**
+     * While the server hasn't yet seen all the text typed, a painted text is
+     * out of date, and is not shown.
+     */
+    @Override
+    public void setText(String text) {
+        if (!keepTypedText) {
+            super.setText(text);
+        }
+    }
+
+    private boolean isTypingUnacknowledged(UIDL uidl) {
+        final int acknowledgedSequence = uidl
+                .hasAttribute(ATTRIBUTE_ACKNOWLEDGED) ? uidl
+                .getIntAttribute(ATTRIBUTE_ACKNOWLEDGED) : lastSentSequence;
+        return acknowledgedSequence < lastSentSequence || unsentSince >= 0
+                || followUpPending;
+    }
+
+    private void updateSendState(UIDL uidl) {
+        if (uidl.hasAttribute(ATTRIBUTE_ACKNOWLEDGED)) {
+            acknowledge(uidl.getIntAttribute(ATTRIBUTE_ACKNOWLEDGED));
+        }
+
+        if (uidl.hasAttribute(ATTRIBUTE_RETRY_AFTER)) {
+            // the server was too busy for our last event; try again later.
+            retryTimer.cancel();
+            retryTimer.schedule(Math.max(1, uidl
+                    .getIntAttribute(ATTRIBUTE_RETRY_AFTER)));
+        }
+    }
+
+    /**
+     * Handle the acknowledgement of our events.
+     */
+    private void acknowledge(int acknowledgedSequence) {
+        // After a reload, continue from where the previous page left off.
+        sequence = Math.max(sequence, acknowledgedSequence);
+
+        if (inFlightSequence >= 0 && acknowledgedSequence >= inFlightSequence) {
+            roundTripEstimate = average(roundTripEstimate, System
+                    .currentTimeMillis()
+                    - inFlightSentTime);
+            requestCompleted();
+        }
+    }
+
+    /**
+     * Keep track of the text the server has. A painted sequence number older
+     * than ours means the paint doesn't reflect our latest changes yet, and is
+     * ignored. If the server has lost track, we send it the full text.
+     */
+    private void updateDeltaBase(UIDL uidl) {
+        final int paintedSequence = uidl.getIntAttribute(ATTRIBUTE_SEQUENCE);
+
+        if (uidl.getBooleanAttribute(ATTRIBUTE_RESYNC)) {
+            sequence = Math.max(sequence, paintedSequence);
+            deltaBase = null;
+            sendSuperImmediateEvent();
+        } else if (paintedSequence >= sequence) {
+            sequence = paintedSequence;
+            deltaBase = uidl.getStringVariable(PROPERTY_TEXT);
+        }
     }
 
     public void sendSuperImmediateEvent() {
-        client.updateVariable(client.getPid(this), PROPERTY_KEYPRESSED, true,
-                false);
-        client.updateVariable(client.getPid(this), "text", getText(), false);
+        final String pid = client.getPid(this);
+        final String text = getText();
+
+        sequence++;
+        lastSentSequence = sequence;
+        client.updateVariable(pid, PROPERTY_KEYPRESSED, true, false);
+        client.updateVariable(pid, PROPERTY_SEQUENCE, sequence, false);
+        if (deltaMode) {
+            if (deltaBase != null) {
+                queueDelta(pid, deltaBase, text);
+            } else {
+                client.updateVariable(pid, PROPERTY_TEXT, text, false);
+            }
+            deltaBase = text;
+        } else {
+            client.updateVariable(pid, PROPERTY_TEXT, text, false);
+        }
         client.sendPendingVariableChanges();
     }
+
+    /**
+     * Queue the single edit that turns <code>oldText</code> into
+     * <code>newText</code>: the length of the common prefix, the number of
+     * characters removed after it, and the characters inserted in their
+     * place.
+     */
+    private void queueDelta(String pid, String oldText, String newText) {
+        final int shorterLength = Math.min(oldText.length(), newText.length());
+
+        int prefix = 0;
+        while (prefix < shorterLength
+                && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+
+        int suffix = 0;
+        while (suffix < shorterLength - prefix
+                && oldText.charAt(oldText.length() - 1 - suffix) == newText
+                        .charAt(newText.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        client.updateVariable(pid, PROPERTY_DELTA_OFFSET, prefix, false);
+        client.updateVariable(pid, PROPERTY_DELTA_REMOVED, oldText.length()
+                - prefix - suffix, false);
+        client.updateVariable(pid, PROPERTY_DELTA_INSERTED, newText.substring(
+                prefix, newText.length() - suffix), false);
+    }
 }
@@ -0,0 +1,166 @@
+/* 
+ * Copyright 2009 Henrik Paul
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.lightframe.components;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.vaadin.Application;
+import com.vaadin.ui.Window;
+
+/**
+ * The serialized, deflated form of a detached {@link Window}, kept either in
+ * memory or in a file.
+ * <p>
+ * A window whose serialized form would reach its {@link Application}, or any
+ * other {@link Window}, such as through a listener written as an inner class
+ * of the application, can't be hibernated: restoring it would attach a copy
+ * of those objects instead of the originals.
+ * 
+ * @author Henrik Paul
+ */
+final class HibernatedWindow implements Serializable {
+    private static final long serialVersionUID = 4469172810350733851L;
+
+    private final byte[] bytes;
+    private final File file;
+
+    /**
+     * An {@link ObjectOutputStream} that refuses to leave the serialized
+     * window.
+     * 
+     * @author Henrik Paul
+     */
+    private static class WindowOutputStream extends ObjectOutputStream {
+        private final Window window;
+
+        WindowOutputStream(OutputStream out, Window window)
+                throws IOException {
+            super(out);
+            this.window = window;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object object) throws IOException {
+            if (object instanceof Application) {
+                throw new NotSerializableException(
+                        "Window refers to its application");
+            } else if (object instanceof Window && object != window) {
+                throw new NotSerializableException(
+                        "Window refers to another window");
+            }
+            return object;
+        }
+    }
+
+    private HibernatedWindow(byte[] bytes, File file) {
+        this.bytes = bytes;
+        this.file = file;
+    }
+
+    /**
+     * Serialize a {@link Window}.
+     * 
+     * @param window
+     *            The window, which must already be detached.
+     * @param directory
+     *            The directory to write the window into, or <code>null</code>
+     *            to keep it in memory.
+     * @return The hibernated window.
+     * @throws IOException
+     *             if the window isn't serializable on its own, or can't be
+     *             written.
+     */
+    static HibernatedWindow hibernate(Window window, File directory)
+            throws IOException {
+        if (directory != null) {
+            final File file = File.createTempFile("window", ".ser", directory);
+            try {
+                write(window, new FileOutputStream(file));
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            return new HibernatedWindow(null, file);
+        } else {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(window, bytes);
+            return new HibernatedWindow(bytes.toByteArray(), null);
+        }
+    }
+
+    private static void write(Window window, OutputStream out)
+            throws IOException {
+        final ObjectOutputStream objectOut = new WindowOutputStream(
+                new DeflaterOutputStream(out), window);
+        try {
+            objectOut.writeObject(window);
+        } finally {
+            objectOut.close();
+        }
+    }
+
+    /**
+     * Deserialize the {@link Window}. This doesn't {@link #discard()} the
+     * serialized form.
+     * 
+     * @return A new, detached instance of the hibernated window.
+     * @throws IOException
+     *             if the window can't be read.
+     */
+    Window restore() throws IOException {
+        final InputStream in = file != null ? new FileInputStream(file)
+                : new ByteArrayInputStream(bytes);
+        final ObjectInputStream objectIn = new ObjectInputStream(
+                new InflaterInputStream(in));
+        try {
+            return (Window) objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Hibernated window could not be restored: "
+                    + e.getMessage());
+        } finally {
+            objectIn.close();
+        }
+    }
+
+    /** Release the storage of the serialized form. */
+    void discard() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return The size of the serialized form in bytes.
+     */
+    long getSize() {
+        return file != null ? file.length() : bytes.length;
+    }
+}
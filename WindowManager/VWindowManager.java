@@ -16,9 +16,12 @@
 
 package org.lightframe.components.client.ui;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.google.gwt.dom.client.Document;
-import com.google.gwt.dom.client.Node;
-import com.google.gwt.dom.client.NodeList;
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.Element;
 import com.google.gwt.user.client.Event;
@@ -40,12 +43,117 @@ public class VWindowManager extends Widget implements Paintable {
             + "-minimized";
     public static final String WINDOWBOX_CLOSE_CLASSNAME = WINDOWBOX_CLASSNAME
             + "-close";
+    public static final String WINDOWBOXES_CLASSNAME = CLASSNAME
+            + "-windowboxes";
+    public static final String PAGE_PREVIOUS_CLASSNAME = CLASSNAME
+            + "-page-previous";
+    public static final String PAGE_NEXT_CLASSNAME = CLASSNAME + "-page-next";
+
+    /** The revision of the window list after this update. */
+    public static final String ATTRIBUTE_SC_REVISION = "rev";
+
+    /** The revision that the operations in this update apply to. */
+    public static final String ATTRIBUTE_SC_BASE_REVISION = "base";
 
-    public static final String ATTRIBUTE_SC_WINDOW_NAMES = "windowNames";
+    /** The operations replace all previously known windows. */
+    public static final String ATTRIBUTE_SC_SNAPSHOT = "snapshot";
+
+    /** The encoded operations, as given by {@link #encodeOperation}. */
+    public static final String ATTRIBUTE_SC_OPERATIONS = "ops";
+
+    /** The minimized states of the shown windows, as a hexadecimal bitset. */
     public static final String ATTRIBUTE_SC_WINDOW_MINIMZED = "minimizedWindows";
+
+    /** The identifier of a window to close. */
     public static final String ATTRIBUTE_CS_WINDOW_CLOSE = "close";
+
+    /** The identifier of a window to minimize or restore. */
     public static final String ATTRIBUTE_CS_WINDOW_MINIMIZE = "minimize";
 
+    /** The number of windows on a taskbar page, if the taskbar is paged. */
+    public static final String ATTRIBUTE_SC_PAGE_SIZE = "pagesize";
+
+    /** The index of the first window on the current taskbar page. */
+    public static final String ATTRIBUTE_SC_PAGE_START = "pagestart";
+
+    /** The number of windows on all taskbar pages. */
+    public static final String ATTRIBUTE_SC_WINDOW_COUNT = "windowcount";
+
+    /** The client has missed an update, and needs a snapshot. */
+    public static final String VARIABLE_RESYNC = "resync";
+
+    /** The index of the first window on the requested taskbar page. */
+    public static final String VARIABLE_PAGE_START = "pagestart";
+
+    /** Append a window with a caption. */
+    public static final char OPERATION_ADD = 'a';
+
+    /** Remove a window. */
+    public static final char OPERATION_REMOVE = 'r';
+
+    /** Change the caption of a window. */
+    public static final char OPERATION_RENAME = 'n';
+
+    private static final char OPERATION_SEPARATOR = ':';
+
+    /** The DOM attribute that holds the window identifier of a box. */
+    private static final String WINDOWBOX_ID_ATTRIBUTE = "windowid";
+
+    /**
+     * The element of a window box, along with the caption and state it
+     * currently shows.
+     * 
+     * @author Henrik Paul
+     */
+    private static class WindowBox {
+        private final Element element = DOM.createDiv();
+        private String caption = null;
+        private boolean minimized = false;
+
+        public WindowBox(int id) {
+            element.setAttribute(WINDOWBOX_ID_ATTRIBUTE, String.valueOf(id));
+            element.setClassName(WINDOWBOX_CLASSNAME);
+        }
+
+        public void setCaption(String caption) {
+            if (caption == null) {
+                caption = "";
+            }
+            if (!caption.equals(this.caption)) {
+                element.setInnerHTML(caption);
+                this.caption = caption;
+            }
+        }
+
+        public void setMinimized(boolean minimized) {
+            if (minimized != this.minimized) {
+                element.setClassName(minimized ? WINDOWBOX_CLASSNAME_MINIMIZED
+                        : WINDOWBOX_CLASSNAME);
+                this.minimized = minimized;
+            }
+        }
+    }
+
+    /** The window identifiers, in display order. */
+    private final List<Integer> windowIds = new ArrayList<Integer>();
+    private final Map<Integer, WindowBox> windowBoxes = new HashMap<Integer, WindowBox>();
+
+    /**
+     * The boxes shown before a snapshot, which are reused for windows that
+     * are still in the snapshot.
+     */
+    private Map<Integer, WindowBox> staleWindowBoxes = null;
+
+    /** The revision of the window list, or -1 before the first snapshot. */
+    private int revision = -1;
+
+    private final Element windowBoxContainer = DOM.createDiv();
+    private final Element previousPage = DOM.createDiv();
+    private final Element nextPage = DOM.createDiv();
+
+    /** The number of windows on a page, or 0 if the taskbar isn't paged. */
+    private int pageSize = 0;
+    private int pageStart = 0;
     private int windowCount = 0;
 
     /** Component identifier in UIDL communications. */
@@ -63,6 +171,20 @@ public class VWindowManager extends Widget implements Paintable {
         // This method call of the Paintable interface sets the component
         // style name in DOM tree
         setStyleName(CLASSNAME);
+
+        windowBoxContainer.setClassName(WINDOWBOXES_CLASSNAME);
+        previousPage.setClassName(PAGE_PREVIOUS_CLASSNAME);
+        previousPage.setInnerHTML("&laquo;");
+        nextPage.setClassName(PAGE_NEXT_CLASSNAME);
+        nextPage.setInnerHTML("&raquo;");
+
+        DOM.appendChild(getElement(), previousPage);
+        DOM.appendChild(getElement(), windowBoxContainer);
+        DOM.appendChild(getElement(), nextPage);
+        updatePaging();
+
+        // the boxes come and go, so their events are handled here instead.
+        sinkEvents(Event.ONCLICK | Event.ONCONTEXTMENU);
     }
 
     public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
@@ -79,88 +201,215 @@ public class VWindowManager extends Widget implements Paintable {
         // Save the UIDL identifier for the component
         uidlId = uidl.getId();
 
-        if (uidl.hasAttribute(ATTRIBUTE_SC_WINDOW_NAMES)) {
-            // ugly way to clear all elements.
-            getElement().setInnerHTML("");
+        if (uidl.hasAttribute(ATTRIBUTE_SC_BASE_REVISION)) {
+            if (uidl.hasAttribute(ATTRIBUTE_SC_SNAPSHOT)) {
+                windowIds.clear();
+                staleWindowBoxes = new HashMap<Integer, WindowBox>(
+                        windowBoxes);
+                windowBoxes.clear();
 
-            final String[] names = uidl
-                    .getStringArrayAttribute(ATTRIBUTE_SC_WINDOW_NAMES);
-            for (final String name : names) {
-                final Element windowBox = DOM.createDiv();
+                if (uidl.hasAttribute(ATTRIBUTE_SC_PAGE_SIZE)) {
+                    pageSize = uidl.getIntAttribute(ATTRIBUTE_SC_PAGE_SIZE);
+                    pageStart = uidl.getIntAttribute(ATTRIBUTE_SC_PAGE_START);
+                    windowCount = uidl
+                            .getIntAttribute(ATTRIBUTE_SC_WINDOW_COUNT);
+                } else {
+                    pageSize = 0;
+                }
+                updatePaging();
+            } else if (uidl.getIntAttribute(ATTRIBUTE_SC_BASE_REVISION) != revision) {
+                // an update has been missed, so these operations can't be
+                // applied.
+                requestResync();
+                return;
+            }
+
+            if (uidl.hasAttribute(ATTRIBUTE_SC_OPERATIONS)) {
+                for (final String operation : uidl
+                        .getStringArrayAttribute(ATTRIBUTE_SC_OPERATIONS)) {
+                    applyOperation(operation);
+                }
+            }
 
-                windowBox.setInnerHTML(name);
-                windowBox.setClassName(WINDOWBOX_CLASSNAME);
-                DOM.sinkEvents(windowBox, Event.ONCLICK | Event.ONCONTEXTMENU);
+            if (uidl.hasAttribute(ATTRIBUTE_SC_WINDOW_MINIMZED)) {
+                applyMinimized(uidl
+                        .getStringAttribute(ATTRIBUTE_SC_WINDOW_MINIMZED));
+            }
 
-                DOM.appendChild(getElement(), windowBox);
+            if (staleWindowBoxes != null) {
+                for (final WindowBox box : staleWindowBoxes.values()) {
+                    windowBoxContainer.removeChild(box.element);
+                }
+                staleWindowBoxes = null;
             }
 
-            windowCount = names.length;
+            revision = uidl.getIntAttribute(ATTRIBUTE_SC_REVISION);
+        } else if (uidl.getIntAttribute(ATTRIBUTE_SC_REVISION) != revision) {
+            requestResync();
+        }
+    }
+
+    /**
+     * Show the paging controls if the taskbar is paged, and hide those that
+     * lead past either end.
+     */
+    private void updatePaging() {
+        final String display = pageSize > 0 ? "" : "none";
+        previousPage.getStyle().setProperty("display", display);
+        nextPage.getStyle().setProperty("display", display);
 
+        previousPage.getStyle().setProperty("visibility",
+                pageStart > 0 ? "" : "hidden");
+        nextPage.getStyle().setProperty("visibility",
+                pageStart + pageSize < windowCount ? "" : "hidden");
+    }
+
+    private void requestPage(int start) {
+        if (0 <= start && start < windowCount) {
+            client.updateVariable(client.getPid(this), VARIABLE_PAGE_START,
+                    start, true);
         }
+    }
 
-        if (uidl.hasAttribute(ATTRIBUTE_SC_WINDOW_MINIMZED)) {
-            final int[] minimized = uidl
-                    .getIntArrayAttribute(ATTRIBUTE_SC_WINDOW_MINIMZED);
-            final NodeList<Node> windowBoxes = getElement().getChildNodes();
+    private void requestResync() {
+        revision = -1;
+        client.updateVariable(client.getPid(this), VARIABLE_RESYNC, true, true);
+    }
 
-            for (int i = 0; i < windowBoxes.getLength(); i++) {
-                final Element windowBox = (Element) windowBoxes.getItem(i);
-                windowBox
-                        .setClassName(minimized[i] == 1 ? WINDOWBOX_CLASSNAME_MINIMIZED
-                                : WINDOWBOX_CLASSNAME);
+    /**
+     * Encode an operation on a window for {@link #ATTRIBUTE_SC_OPERATIONS}.
+     * 
+     * @param operation
+     *            {@link #OPERATION_ADD}, {@link #OPERATION_REMOVE} or
+     *            {@link #OPERATION_RENAME}.
+     * @param id
+     *            The identifier of the window.
+     * @param caption
+     *            The caption of the window, or <code>null</code> if the
+     *            operation has none.
+     * @return The encoded operation.
+     */
+    public static String encodeOperation(char operation, int id,
+            String caption) {
+        final String encoded = operation + String.valueOf(OPERATION_SEPARATOR)
+                + id;
+        if (caption != null) {
+            return encoded + OPERATION_SEPARATOR + caption;
+        } else {
+            return encoded;
+        }
+    }
+
+    private void applyOperation(String operation) {
+        // the caption may itself contain separators, so only the first two
+        // are significant.
+        final int captionSeparator = operation.indexOf(OPERATION_SEPARATOR, 2);
+        final Integer id = Integer.valueOf(operation.substring(2,
+                captionSeparator >= 0 ? captionSeparator : operation.length()));
+        final String caption = captionSeparator >= 0 ? operation
+                .substring(captionSeparator + 1) : null;
+
+        switch (operation.charAt(0)) {
+        case OPERATION_ADD:
+            WindowBox box = staleWindowBoxes != null ? staleWindowBoxes
+                    .remove(id) : null;
+            if (box == null) {
+                box = new WindowBox(id.intValue());
+            }
+            box.setCaption(caption);
+
+            // appending an attached box moves it to the end.
+            DOM.appendChild(windowBoxContainer, box.element);
+            windowIds.add(id);
+            windowBoxes.put(id, box);
+            break;
+        case OPERATION_REMOVE:
+            final WindowBox removedBox = windowBoxes.remove(id);
+            if (removedBox != null) {
+                windowBoxContainer.removeChild(removedBox.element);
+                windowIds.remove(id);
+            }
+            break;
+        case OPERATION_RENAME:
+            final WindowBox renamedBox = windowBoxes.get(id);
+            if (renamedBox != null) {
+                renamedBox.setCaption(caption);
             }
+            break;
+        }
+    }
+
+    private void applyMinimized(String bitset) {
+        for (int i = 0; i < windowIds.size(); i++) {
+            final int digit = Integer.parseInt(
+                    bitset.substring(i / 4, i / 4 + 1), 16);
+            windowBoxes.get(windowIds.get(i)).setMinimized(
+                    (digit & (1 << (i % 4))) != 0);
         }
     }
 
     @Override
     public void onBrowserEvent(Event event) {
-        Element target = DOM.eventGetCurrentTarget(event);
+        final Element target = DOM.eventGetTarget(event);
+        if (event.getTypeInt() == Event.ONCLICK) {
+            if (target == previousPage) {
+                requestPage(pageStart - pageSize);
+                return;
+            } else if (target == nextPage) {
+                requestPage(pageStart + pageSize);
+                return;
+            }
+        }
+
+        final Integer id = getWindowId(target);
+        if (id == null) {
+            return;
+        }
 
         switch (event.getTypeInt()) {
         case Event.ONCLICK:
-            minimizeWindow(target);
+            client.updateVariable(client.getPid(this),
+                    ATTRIBUTE_CS_WINDOW_MINIMIZE, id.intValue(), true);
             break;
         case Event.ONCONTEXTMENU:
             event.preventDefault();
             event.stopPropagation();
-            closeWindow(getWindowBoxIndex(target));
-            break;
-        }
-    }
-
-    private void minimizeWindow(Element windowBox) {
-        final int index = getWindowBoxIndex(windowBox);
-        if (isValidWindowIndex(index)) {
             client.updateVariable(client.getPid(this),
-                    ATTRIBUTE_CS_WINDOW_MINIMIZE, index, true);
+                    ATTRIBUTE_CS_WINDOW_CLOSE, id.intValue(), true);
+            break;
         }
     }
 
     public void closeWindow(int index) {
         if (isValidWindowIndex(index)) {
             client.updateVariable(client.getPid(this),
-                    ATTRIBUTE_CS_WINDOW_CLOSE, index, true);
+                    ATTRIBUTE_CS_WINDOW_CLOSE, windowIds.get(index)
+                            .intValue(), true);
         } else {
             throw new IndexOutOfBoundsException();
         }
     }
 
-    private int getWindowBoxIndex(Element windowBox) {
-        final NodeList<Node> siblings = windowBox.getParentNode()
-                .getChildNodes();
-
-        for (int i = 0; i < siblings.getLength(); i++) {
-            final Node sibling = siblings.getItem(i);
-            if (sibling.equals(windowBox)) {
-                return i;
+    /**
+     * Find the window of the box that an event targeted.
+     * 
+     * @param target
+     *            The event target, which may be inside the caption of a box.
+     * @return The window identifier, or <code>null</code> if the target isn't
+     *         in a box.
+     */
+    private Integer getWindowId(Element target) {
+        while (target != null && target != getElement()) {
+            final String id = target.getAttribute(WINDOWBOX_ID_ATTRIBUTE);
+            if (id != null && id.length() > 0) {
+                return Integer.valueOf(id);
             }
+            target = DOM.getParent(target);
         }
-
-        return -1;
+        return null;
     }
 
     private boolean isValidWindowIndex(int index) {
-        return 0 <= index && index < windowCount;
+        return 0 <= index && index < windowIds.size();
     }
 }
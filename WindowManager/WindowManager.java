@@ -16,11 +16,33 @@
 
 package org.lightframe.components;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 
 import org.lightframe.components.client.ui.VWindowManager;
 
@@ -28,6 +50,7 @@ import org.lightframe.components.client.ui.VWindowManager;
 import com.vaadin.Application;
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.gwt.server.WebApplicationContext;
 import com.vaadin.ui.AbstractComponent;
 import com.vaadin.ui.Window;
 import com.vaadin.ui.Window.CloseEvent;
@@ -35,6 +58,27 @@ import com.vaadin.ui.Window.CloseListener;
 
 /**
  * A lightweight window manager.
+ * <p>
+ * Each managed {@link Window} gets an identifier that stays stable for as long
+ * as the window is managed. After the first paint, only the windows that were
+ * added, removed or renamed since the previous paint are sent to the client,
+ * with the minimized states as a bitset. A full snapshot is sent again when
+ * the component is attached, or when the client detects that it has missed an
+ * update.
+ * <p>
+ * Minimized windows can be hibernated, to free the memory that their
+ * components take: see {@link #setHibernationDelay(long)} and
+ * {@link #setMaxMinimizedWindows(int)}. A hibernated window is detached and
+ * kept in serialized form until the user restores it from the taskbar. Since
+ * the restored window is a new instance, the windows of an application that
+ * uses hibernation must be serializable on their own, and the application
+ * must not hold on to references to them. The budget is a number of windows,
+ * not of bytes, since the memory a window's components take can't be
+ * measured reliably.
+ * <p>
+ * With very many windows, the taskbar can be paged with
+ * {@link #setTaskbarPageSize(int)}, so that only the windows on the current
+ * page are sent to and rendered by the client.
  * 
  * @author Henrik Paul
  */
@@ -68,6 +112,99 @@ public class WindowManager extends AbstractComponent {
 
     }
 
+    /**
+     * Builds the content of a {@link Window} that was added with
+     * {@link WindowManager#addWindow(String, WindowContentFactory)}, when the
+     * user opens it for the first time.
+     * 
+     * @author Henrik Paul
+     */
+    public interface WindowContentFactory extends Serializable {
+        /**
+         * Fill a newly created {@link Window} with its content.
+         * 
+         * @param window
+         *            The window, with its caption already set. It's attached
+         *            right after this call.
+         */
+        public void createContent(Window window);
+    }
+
+    /**
+     * A handle to a {@link Window} that was added with
+     * {@link WindowManager#addWindow(String, WindowContentFactory)}. It stays
+     * valid while the window isn't built, or is hibernated.
+     * 
+     * @author Henrik Paul
+     */
+    public class LazyWindow implements Serializable {
+        private static final long serialVersionUID = -6393468101522834578L;
+
+        private final WindowEntry entry;
+
+        private LazyWindow(WindowEntry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Get the window, if it's currently built.
+         * 
+         * @return The {@link Window}, or <code>null</code> if it's not yet
+         *         built, it's hibernated, or it's closed.
+         */
+        public Window getWindow() {
+            return isClosed() ? null : entry.window;
+        }
+
+        /**
+         * Build or restore the window if needed, and show it.
+         * 
+         * @return The shown {@link Window}, or <code>null</code> if it's
+         *         closed, or the {@link WindowManager} isn't attached to an
+         *         {@link Application}.
+         */
+        public Window open() {
+            if (isClosed() || getApplication() == null) {
+                return null;
+            }
+
+            if (entry.isDetached() && !wake(entry)) {
+                return null;
+            } else {
+                entry.window.setVisible(true);
+            }
+            requestRepaint();
+            return entry.window;
+        }
+
+        /**
+         * Close the window, whether it's built or not.
+         * 
+         * @return <code>true</code> if the window was closed.
+         *         <code>false</code> if it was already closed.
+         * @see WindowManager#closeWindow(Window)
+         */
+        public boolean close() {
+            if (isClosed()) {
+                return false;
+            } else if (entry.isDetached()) {
+                discard(entry);
+                requestRepaint();
+                return true;
+            } else {
+                return closeWindow(entry.window);
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the window has been closed, and is no
+         *         longer managed by the {@link WindowManager}.
+         */
+        public boolean isClosed() {
+            return entriesById.get(entry.id) != entry;
+        }
+    }
+
     /**
      * Listen for closing {@link Window Windows}, that are managed by this
      * {@link WindowManager}. That Window will be removed from the
@@ -79,15 +216,114 @@ public class WindowManager extends AbstractComponent {
         private static final long serialVersionUID = 3288700222791880168L;
 
         public void windowClose(CloseEvent event) {
-            final Window closedWindow = event.getWindow();
+            final WindowEntry entry = entriesByWindow.remove(event.getWindow());
 
-            if (managedWindows.contains(closedWindow)) {
-                managedWindows.remove(event.getWindow());
+            if (entry != null) {
+                entriesById.remove(entry.id);
+                if (entry.painted) {
+                    pendingRemovals.add(entry.id);
+                }
             } else {
                 throw new WindowNotManagedException();
             }
 
-            requestRepaint();
+            if (!bulkUpdate) {
+                requestRepaint();
+            }
+        }
+    }
+
+    /**
+     * A managed {@link Window}, along with its identifier and the state that
+     * the client last received of it.
+     * 
+     * @author Henrik Paul
+     */
+    private static class WindowEntry implements Serializable {
+        private static final long serialVersionUID = 1856378219457286917L;
+
+        private final int id;
+
+        /**
+         * The window, or <code>null</code> while it's hibernated or not yet
+         * built.
+         */
+        private Window window;
+        private HibernatedWindow hibernatedWindow = null;
+        private WindowContentFactory contentFactory = null;
+        private String detachedCaption = null;
+
+        /** When the window was first seen minimized, or 0 if it's not. */
+        private long minimizedSince = 0;
+
+        /** Set if the window failed to serialize while minimized. */
+        private boolean unhibernatable = false;
+
+        private boolean painted = false;
+        private String paintedCaption = null;
+        private boolean paintedMinimized = false;
+
+        public WindowEntry(int id, Window window) {
+            this.id = id;
+            this.window = window;
+        }
+
+        public boolean isDetached() {
+            return window == null;
+        }
+
+        public boolean isHibernated() {
+            return hibernatedWindow != null;
+        }
+
+        public String getCaption() {
+            return isDetached() ? detachedCaption : window.getCaption();
+        }
+
+        public boolean isMinimized() {
+            return isDetached() || !window.isVisible();
+        }
+    }
+
+    /**
+     * Discards the hibernated windows of a session when it ends. This is kept
+     * in the session, since an expired application is closed without its
+     * components being detached.
+     * 
+     * @author Henrik Paul
+     */
+    private static class HibernationCleanup implements
+            HttpSessionBindingListener, Serializable {
+        private static final long serialVersionUID = -1785293468820461732L;
+
+        private final Set<HibernatedWindow> windows = Collections
+                .synchronizedSet(new HashSet<HibernatedWindow>());
+
+        public void valueBound(HttpSessionBindingEvent event) {
+        }
+
+        public void valueUnbound(HttpSessionBindingEvent event) {
+            synchronized (windows) {
+                for (final HibernatedWindow window : windows) {
+                    window.discard();
+                }
+                windows.clear();
+            }
+        }
+    }
+
+    /**
+     * Orders the entries of minimized windows from the longest minimized.
+     * 
+     * @author Henrik Paul
+     */
+    private static class MinimizedSinceComparator implements
+            Comparator<WindowEntry>, Serializable {
+        private static final long serialVersionUID = -5047553402404913545L;
+
+        public int compare(WindowEntry o1, WindowEntry o2) {
+            return o1.minimizedSince < o2.minimizedSince ? -1
+                    : (o1.minimizedSince == o2.minimizedSince ? 0 : 1);
         }
     }
 
@@ -95,9 +331,35 @@ public class WindowManager extends AbstractComponent {
     private static final Method WINDOW_CLOSE_METHOD;
     private static final String WINDOW_CLOSE_METHOD_NAME = "close";
     private static final Class<?>[] WINDOW_CLOSE_METHOD_ARGUMENTS = null;
+    private static final long MIN_HIBERNATION_CHECK_PERIOD = 1000;
+    private static final Logger LOGGER = Logger.getLogger(WindowManager.class
+            .getName());
 
     private final ManagerWindowCloseListener closeListener = new ManagerWindowCloseListener();
-    private final List<Window> managedWindows = new ArrayList<Window>();
+
+    /** The managed windows by identifier, in display order. */
+    private final Map<Integer, WindowEntry> entriesById = new LinkedHashMap<Integer, WindowEntry>();
+    private final Map<Window, WindowEntry> entriesByWindow = new IdentityHashMap<Window, WindowEntry>();
+    private final List<Integer> pendingRemovals = new ArrayList<Integer>();
+
+    private int nextWindowId = 0;
+    private int revision = 0;
+    private boolean snapshotPending = true;
+    private boolean bulkUpdate = false;
+
+    private long hibernationDelay = -1;
+    private transient AtomicReference<Future<?>> hibernationCheck = new AtomicReference<Future<?>>();
+    private int maxMinimizedWindows = -1;
+    private File hibernationDirectory = null;
+    private HibernationCleanup hibernationCleanup = null;
+    private final String hibernationCleanupAttribute = WindowManager.class
+            .getName()
+            + ".hibernation." + UUID.randomUUID();
+
+    private int taskbarPageSize = 0;
+    private int taskbarPageStart = 0;
+    private int[] paintedPage = new int[0];
+    private int paintedWindowCount = 0;
 
     static {
         try {
@@ -132,7 +394,9 @@ public class WindowManager extends AbstractComponent {
             final Window window = new Window();
             getApplication().getMainWindow().addWindow(window);
             window.addListener(closeListener);
-            managedWindows.add(window);
+            final WindowEntry entry = new WindowEntry(nextWindowId++, window);
+            entriesById.put(entry.id, entry);
+            entriesByWindow.put(window, entry);
 
             requestRepaint();
             return window;
@@ -141,6 +405,34 @@ public class WindowManager extends AbstractComponent {
         }
     }
 
+    /**
+     * Add a {@link Window} that is built only when the user first restores it
+     * from the taskbar. Until then, it's shown minimized, and takes no more
+     * memory than its caption and factory.
+     * 
+     * @param caption
+     *            The caption of the window.
+     * @param contentFactory
+     *            The factory that fills the window with its content.
+     * @return A handle for opening and closing the window, and for getting it
+     *         once it's built.
+     */
+    public LazyWindow addWindow(String caption,
+            WindowContentFactory contentFactory) {
+        if (contentFactory == null) {
+            throw new IllegalArgumentException(
+                    "contentFactory may not be null");
+        }
+
+        final WindowEntry entry = new WindowEntry(nextWindowId++, null);
+        entry.detachedCaption = caption;
+        entry.contentFactory = contentFactory;
+        entriesById.put(entry.id, entry);
+
+        requestRepaint();
+        return new LazyWindow(entry);
+    }
+
     /**
      * Close a {@link Window} that is managed by this {@link WindowManager}.
      * 
@@ -154,7 +446,7 @@ public class WindowManager extends AbstractComponent {
      */
     public boolean closeWindow(Window window) {
         if (getApplication() != null && window != null
-                && managedWindows.contains(window)
+                && entriesByWindow.containsKey(window)
                 && window.getParent() != null) {
 
             try {
@@ -176,53 +468,606 @@ public class WindowManager extends AbstractComponent {
 
     /**
      * Closes all {@link Window Windows} managed by this {@link WindowManager}.
+     * The {@link WindowManager} is repainted only once.
      * 
      * @see #closeWindow(Window)
      */
     public void closeAllWindows() {
-        for (final Window window : managedWindows
-                .toArray(new Window[managedWindows.size()])) {
-            closeWindow(window);
+        bulkUpdate = true;
+        try {
+            for (final WindowEntry entry : getEntries()) {
+                if (entry.isDetached()) {
+                    discard(entry);
+                } else {
+                    closeWindow(entry.window);
+                }
+            }
+        } finally {
+            bulkUpdate = false;
+        }
+        requestRepaint();
+    }
+
+    /**
+     * Minimizes all {@link Window Windows} managed by this
+     * {@link WindowManager}. The WindowManager is repainted only once.
+     */
+    public void minimizeAllWindows() {
+        setAllWindowsVisible(false);
+    }
+
+    /**
+     * Restores all minimized {@link Window Windows} managed by this
+     * {@link WindowManager}. The WindowManager is repainted only once.
+     */
+    public void restoreAllWindows() {
+        setAllWindowsVisible(true);
+    }
+
+    private void setAllWindowsVisible(boolean visible) {
+        for (final WindowEntry entry : getEntries()) {
+            if (entry.isDetached()) {
+                if (visible && getApplication() != null) {
+                    wake(entry);
+                }
+            } else {
+                entry.window.setVisible(visible);
+            }
+        }
+        if (!visible) {
+            hibernateWindows();
+        }
+        requestRepaint();
+    }
+
+    /**
+     * Hibernate windows that have been minimized for longer than this delay.
+     * The windows are checked whenever the {@link WindowManager} receives
+     * events from the client, by {@link #hibernateWindows()}, and by a
+     * background task every half delay, but at most once a second.
+     * 
+     * @param millis
+     *            The delay in milliseconds. A negative delay disables the
+     *            time-based hibernation, which is the default.
+     */
+    public void setHibernationDelay(long millis) {
+        hibernationDelay = millis;
+        scheduleHibernationCheck();
+    }
+
+    public long getHibernationDelay() {
+        return hibernationDelay;
+    }
+
+    /**
+     * Hibernate the longest minimized windows, when more than this many
+     * windows are minimized.
+     * 
+     * @param count
+     *            The number of minimized windows that are kept in memory. A
+     *            negative count disables the count-based hibernation, which
+     *            is the default.
+     */
+    public void setMaxMinimizedWindows(int count) {
+        maxMinimizedWindows = count;
+        hibernateWindows();
+    }
+
+    public int getMaxMinimizedWindows() {
+        return maxMinimizedWindows;
+    }
+
+    /**
+     * Set where hibernated windows are kept.
+     * 
+     * @param directory
+     *            The directory to write the hibernated windows into, or
+     *            <code>null</code> to keep them deflated in memory, which is
+     *            the default.
+     */
+    public void setHibernationDirectory(File directory) {
+        hibernationDirectory = directory;
+    }
+
+    public File getHibernationDirectory() {
+        return hibernationDirectory;
+    }
+
+    /**
+     * Get the number of windows that are currently hibernated.
+     * 
+     * @return The number of hibernated windows.
+     */
+    public int getHibernatedWindowCount() {
+        int count = 0;
+        for (final WindowEntry entry : entriesById.values()) {
+            if (entry.isHibernated()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Hibernate the minimized windows that are due according to
+     * {@link #setHibernationDelay(long)} and
+     * {@link #setMaxMinimizedWindows(int)}.
+     */
+    public void hibernateWindows() {
+        if (getApplication() == null
+                || (hibernationDelay < 0 && maxMinimizedWindows < 0)) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<WindowEntry> minimized = new ArrayList<WindowEntry>();
+
+        for (final WindowEntry entry : entriesById.values()) {
+            if (entry.isDetached()) {
+                continue;
+            } else if (entry.window.isVisible()) {
+                entry.minimizedSince = 0;
+                entry.unhibernatable = false;
+            } else if (!entry.unhibernatable) {
+                if (entry.minimizedSince == 0) {
+                    entry.minimizedSince = now;
+                }
+                minimized.add(entry);
+            }
+        }
+
+        Collections.sort(minimized, new MinimizedSinceComparator());
+
+        final int overBudget = maxMinimizedWindows >= 0 ? minimized.size()
+                - maxMinimizedWindows : 0;
+        for (int i = 0; i < minimized.size(); i++) {
+            final WindowEntry entry = minimized.get(i);
+            if (i < overBudget
+                    || (hibernationDelay >= 0 && now - entry.minimizedSince >= hibernationDelay)) {
+                hibernate(entry);
+            }
         }
     }
 
+    /**
+     * Check the windows in the background, so that they're hibernated even
+     * if the user doesn't use the {@link WindowManager}. The check is
+     * cancelled once the manager is detached or its application is closed.
+     */
+    private void scheduleHibernationCheck() {
+        cancelHibernationCheck();
+        if (getApplication() == null || hibernationDelay < 0) {
+            return;
+        }
+
+        final long period = Math.max(hibernationDelay / 2,
+                MIN_HIBERNATION_CHECK_PERIOD);
+        try {
+            hibernationCheck.set(BackgroundTaskExecutor.get()
+                    .scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                            checkHibernation();
+                        }
+                    }, period, period, TimeUnit.MILLISECONDS));
+            BackgroundTaskExecutor.taskStarted();
+        } catch (RejectedExecutionException e) {
+            // the pool is shut down; the windows are checked on client events.
+        }
+    }
+
+    private void checkHibernation() {
+        final Application application = getApplication();
+        if (application == null || !application.isRunning()) {
+            cancelHibernationCheck();
+            return;
+        }
+
+        synchronized (application) {
+            hibernateWindows();
+        }
+    }
+
+    private void cancelHibernationCheck() {
+        final Future<?> check = hibernationCheck.getAndSet(null);
+        if (check != null) {
+            check.cancel(false);
+            BackgroundTaskExecutor.taskFinished();
+        }
+    }
+
+    /**
+     * Detach and serialize a minimized window. A window that can't be
+     * serialized is left as it is.
+     */
+    private void hibernate(WindowEntry entry) {
+        final Window window = entry.window;
+        final Window parent = (Window) window.getParent();
+        if (parent == null) {
+            return;
+        }
+
+        window.removeListener(closeListener);
+        parent.removeWindow(window);
+
+        try {
+            entry.hibernatedWindow = HibernatedWindow.hibernate(window,
+                    hibernationDirectory);
+        } catch (IOException e) {
+            // not serializable; don't try again until it's been restored.
+            parent.addWindow(window);
+            window.addListener(closeListener);
+            entry.unhibernatable = true;
+            return;
+        }
+
+        entriesByWindow.remove(window);
+        entry.detachedCaption = window.getCaption();
+        entry.window = null;
+        getHibernationCleanup().windows.add(entry.hibernatedWindow);
+    }
+
+    private HibernationCleanup getHibernationCleanup() {
+        if (hibernationCleanup == null) {
+            hibernationCleanup = new HibernationCleanup();
+            final HttpSession session = getHttpSession();
+            if (session != null) {
+                session.setAttribute(hibernationCleanupAttribute,
+                        hibernationCleanup);
+            }
+        }
+        return hibernationCleanup;
+    }
+
+    private HttpSession getHttpSession() {
+        final Application application = getApplication();
+        if (application != null
+                && application.getContext() instanceof WebApplicationContext) {
+            return ((WebApplicationContext) application.getContext())
+                    .getHttpSession();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Restore a hibernated window, or build a window from its content
+     * factory, and attach it. A hibernated window that can't be read back is
+     * dropped.
+     * 
+     * @return <code>true</code> if the window was attached.
+     */
+    private boolean wake(WindowEntry entry) {
+        final Window window;
+        if (entry.isHibernated()) {
+            try {
+                window = entry.hibernatedWindow.restore();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not restore hibernated window"
+                        + " \"" + entry.detachedCaption + "\"", e);
+                discard(entry);
+                requestRepaint();
+                return false;
+            }
+
+            releaseHibernatedWindow(entry);
+        } else {
+            window = new Window(entry.detachedCaption);
+            entry.contentFactory.createContent(window);
+            entry.contentFactory = null;
+        }
+
+        entry.detachedCaption = null;
+        entry.minimizedSince = 0;
+        entry.window = window;
+        entriesByWindow.put(window, entry);
+
+        window.setVisible(true);
+        getApplication().getMainWindow().addWindow(window);
+        window.addListener(closeListener);
+        return true;
+    }
+
+    private void releaseHibernatedWindow(WindowEntry entry) {
+        entry.hibernatedWindow.discard();
+        if (hibernationCleanup != null) {
+            hibernationCleanup.windows.remove(entry.hibernatedWindow);
+        }
+        entry.hibernatedWindow = null;
+    }
+
+    /**
+     * Close a hibernated or not yet built window.
+     */
+    private void discard(WindowEntry entry) {
+        if (entry.isHibernated()) {
+            releaseHibernatedWindow(entry);
+        }
+        entriesById.remove(entry.id);
+        if (entry.painted) {
+            pendingRemovals.add(entry.id);
+        }
+    }
+
+    /**
+     * Show only a page of windows at a time in the taskbar, with controls to
+     * move between pages. Only the windows on the current page are sent to
+     * the client.
+     * 
+     * @param pageSize
+     *            The number of windows on a page. 0 shows all windows, which
+     *            is the default.
+     */
+    public void setTaskbarPageSize(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("pageSize may not be negative");
+        }
+
+        if (taskbarPageSize != pageSize) {
+            taskbarPageSize = pageSize;
+            taskbarPageStart = 0;
+            snapshotPending = true;
+            requestRepaint();
+        }
+    }
+
+    public int getTaskbarPageSize() {
+        return taskbarPageSize;
+    }
+
+    /**
+     * Get the windows on the current taskbar page. If windows have been
+     * closed since, so that the page is past the end, the last page is
+     * shown instead.
+     */
+    private List<WindowEntry> getTaskbarPage() {
+        final int count = entriesById.size();
+        if (taskbarPageStart >= count) {
+            taskbarPageStart = Math.max(0, (count - 1) / taskbarPageSize
+                    * taskbarPageSize);
+        }
+
+        final List<WindowEntry> page = new ArrayList<WindowEntry>(
+                taskbarPageSize);
+        int index = 0;
+        for (final WindowEntry entry : entriesById.values()) {
+            if (index >= taskbarPageStart + taskbarPageSize) {
+                break;
+            } else if (index >= taskbarPageStart) {
+                page.add(entry);
+            }
+            index++;
+        }
+        return page;
+    }
+
+    private boolean isPaintedPage(List<WindowEntry> page) {
+        if (page.size() != paintedPage.length
+                || entriesById.size() != paintedWindowCount) {
+            return false;
+        }
+        for (int i = 0; i < paintedPage.length; i++) {
+            if (page.get(i).id != paintedPage[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of {@link Window Windows} managed by this
+     * {@link WindowManager}.
+     * 
+     * @return The number of managed windows.
+     */
+    public int getWindowCount() {
+        return entriesById.size();
+    }
+
+    /**
+     * @return A copy of the managed windows, so that they can be closed while
+     *         iterating.
+     */
+    private WindowEntry[] getEntries() {
+        return entriesById.values().toArray(
+                new WindowEntry[entriesById.size()]);
+    }
+
+    @Override
+    public void attach() {
+        super.attach();
+
+        // the client side widget is new, and knows of no windows.
+        snapshotPending = true;
+        scheduleHibernationCheck();
+    }
+
+    @Override
+    public void detach() {
+        // The hibernated windows would outlive the manager only as files, so
+        // they are restored, still minimized.
+        for (final WindowEntry entry : getEntries()) {
+            if (entry.isHibernated() && wake(entry)) {
+                entry.window.setVisible(false);
+            }
+        }
+
+        final HttpSession session = getHttpSession();
+        if (hibernationCleanup != null && session != null) {
+            session.removeAttribute(hibernationCleanupAttribute);
+        }
+        hibernationCleanup = null;
+
+        cancelHibernationCheck();
+        super.detach();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public void changeVariables(Object source, Map variables) {
         super.changeVariables(source, variables);
 
         if (variables.containsKey(VWindowManager.ATTRIBUTE_CS_WINDOW_CLOSE)) {
-            Integer closedWindowIndex = (Integer) variables
+            final Integer closedWindowId = (Integer) variables
                     .get(VWindowManager.ATTRIBUTE_CS_WINDOW_CLOSE);
-            closeWindow(managedWindows.get(closedWindowIndex));
+            final WindowEntry entry = entriesById.get(closedWindowId);
+            if (entry != null && entry.isDetached()) {
+                discard(entry);
+            } else if (entry != null) {
+                closeWindow(entry.window);
+            }
             requestRepaint();
         }
 
         if (variables.containsKey(VWindowManager.ATTRIBUTE_CS_WINDOW_MINIMIZE)) {
-            Integer minimizedWindowIndex = (Integer) variables
+            final Integer minimizedWindowId = (Integer) variables
                     .get(VWindowManager.ATTRIBUTE_CS_WINDOW_MINIMIZE);
-            Window window = managedWindows.get(minimizedWindowIndex);
-            window.setVisible(!window.isVisible());
+            final WindowEntry entry = entriesById.get(minimizedWindowId);
+            if (entry != null && entry.isDetached()) {
+                wake(entry);
+            } else if (entry != null) {
+                entry.window.setVisible(!entry.window.isVisible());
+            }
+            requestRepaint();
+        }
+
+        if (variables.containsKey(VWindowManager.VARIABLE_RESYNC)) {
+            snapshotPending = true;
+            requestRepaint();
+        }
+
+        if (variables.containsKey(VWindowManager.VARIABLE_PAGE_START)
+                && taskbarPageSize > 0) {
+            final int pageStart = (Integer) variables
+                    .get(VWindowManager.VARIABLE_PAGE_START);
+            taskbarPageStart = Math.max(0, pageStart / taskbarPageSize
+                    * taskbarPageSize);
             requestRepaint();
         }
+
+        if (hibernationCheck.get() == null) {
+            // not serialized with the session
+            scheduleHibernationCheck();
+        }
+        hibernateWindows();
     }
 
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
         super.paintContent(target);
 
-        Object[] windowNames = new String[managedWindows.size()];
-        Object[] minimizedWindows = new Integer[managedWindows.size()];
+        final Collection<WindowEntry> entries;
+        if (taskbarPageSize > 0) {
+            final List<WindowEntry> page = getTaskbarPage();
+
+            // windows shift in and out of a page as others are added and
+            // removed, so a changed page is always sent whole.
+            snapshotPending |= !isPaintedPage(page);
+            entries = page;
+        } else {
+            entries = entriesById.values();
+        }
+
+        final List<String> operations = new ArrayList<String>();
+        boolean minimizedChanged = snapshotPending;
+
+        if (!snapshotPending && taskbarPageSize == 0) {
+            for (final Integer id : pendingRemovals) {
+                operations.add(VWindowManager.encodeOperation(
+                        VWindowManager.OPERATION_REMOVE, id, null));
+            }
+        }
+        pendingRemovals.clear();
+
+        for (final WindowEntry entry : entries) {
+            final String caption = entry.getCaption();
+            final boolean minimized = entry.isMinimized();
+
+            if (snapshotPending || !entry.painted) {
+                operations.add(VWindowManager.encodeOperation(
+                        VWindowManager.OPERATION_ADD, entry.id, caption));
+            } else if (!captionEquals(caption, entry.paintedCaption)) {
+                operations.add(VWindowManager.encodeOperation(
+                        VWindowManager.OPERATION_RENAME, entry.id, caption));
+            }
+
+            minimizedChanged |= minimized != entry.paintedMinimized;
+
+            entry.painted = true;
+            entry.paintedCaption = caption;
+            entry.paintedMinimized = minimized;
+        }
+
+        if (snapshotPending || !operations.isEmpty() || minimizedChanged) {
+            target.addAttribute(VWindowManager.ATTRIBUTE_SC_BASE_REVISION,
+                    revision);
+            revision++;
+
+            if (snapshotPending) {
+                target.addAttribute(VWindowManager.ATTRIBUTE_SC_SNAPSHOT, true);
+                snapshotPending = false;
 
-        for (int i = 0; i < managedWindows.size(); i++) {
-            final Window window = managedWindows.get(i);
-            windowNames[i] = window.getCaption();
-            minimizedWindows[i] = window.isVisible() ? 0 : 1;
+                if (taskbarPageSize > 0) {
+                    target.addAttribute(VWindowManager.ATTRIBUTE_SC_PAGE_SIZE,
+                            taskbarPageSize);
+                    target.addAttribute(
+                            VWindowManager.ATTRIBUTE_SC_PAGE_START,
+                            taskbarPageStart);
+                    target.addAttribute(
+                            VWindowManager.ATTRIBUTE_SC_WINDOW_COUNT,
+                            entriesById.size());
+                }
+            }
+            if (!operations.isEmpty()) {
+                target.addAttribute(VWindowManager.ATTRIBUTE_SC_OPERATIONS,
+                        operations.toArray(new String[operations.size()]));
+            }
+            if (minimizedChanged) {
+                target.addAttribute(
+                        VWindowManager.ATTRIBUTE_SC_WINDOW_MINIMZED,
+                        encodeMinimized(entries));
+            }
+        }
+
+        if (taskbarPageSize > 0) {
+            paintedPage = new int[entries.size()];
+            int i = 0;
+            for (final WindowEntry entry : entries) {
+                paintedPage[i++] = entry.id;
+            }
+            paintedWindowCount = entriesById.size();
+        }
+
+        target.addAttribute(VWindowManager.ATTRIBUTE_SC_REVISION, revision);
+    }
+
+    /**
+     * Encode the minimized states of the windows, in their order, as a
+     * bitset of hexadecimal digits. Each digit holds four windows, the first
+     * one in the lowest bit.
+     */
+    private static String encodeMinimized(Collection<WindowEntry> entries) {
+        final char[] digits = new char[(entries.size() + 3) / 4];
+        int index = 0;
+        for (final WindowEntry entry : entries) {
+            if (entry.paintedMinimized) {
+                digits[index / 4] |= 1 << (index % 4);
+            }
+            index++;
         }
 
-        target.addAttribute(VWindowManager.ATTRIBUTE_SC_WINDOW_NAMES,
-                windowNames);
-        target.addAttribute(VWindowManager.ATTRIBUTE_SC_WINDOW_MINIMZED,
-                minimizedWindows);
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = Character.forDigit(digits[i], 16);
+        }
+        return new String(digits);
+    }
+
+    private static boolean captionEquals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        hibernationCheck = new AtomicReference<Future<?>>();
     }
 }